@@ -15,6 +15,13 @@ import it.unitn.ds1.Chatter.PrintHistoryMsg;
 
 public class CausalMulticast {
     final private static int N_LISTENERS = 10; // number of listening actors
+    /*
+        Delay of the messages between peers, in [latency, latency + jitter) ms:
+        chat and view messages, messages resent during a flush, flush messages
+     */
+    final static int LINK_LATENCY = 1, LINK_JITTER = 10;
+    final static int RESEND_LATENCY = 2, RESEND_JITTER = 19;
+    final static int FLUSH_LATENCY = 1, FLUSH_JITTER = 20;
     private static List<ActorRef> group = new ArrayList<>();
     final private static ActorSystem system = ActorSystem.create("helloakka");
     protected static FileOutputStream outputStream;
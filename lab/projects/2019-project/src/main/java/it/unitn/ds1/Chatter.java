@@ -9,8 +9,6 @@ import java.util.*;
 import akka.actor.Cancellable;
 import akka.actor.Props;
 
-import java.lang.Thread;
-import java.lang.InterruptedException;
 import java.util.concurrent.TimeUnit;
 
 import scala.concurrent.duration.Duration;
@@ -39,6 +37,10 @@ class Chatter extends AbstractActor {
     private final static int BEACON_INTERVAL = 5000;
     private final static int MANAGER_TIMEOUT = 10000;
     private Cancellable cancellable;
+    /*
+        Simulated network links to the other peers
+     */
+    private final ActorRef links;
     /*
         Manager uses this HasMap to associate each actor to his Timeout
      */
@@ -167,6 +169,8 @@ class Chatter extends AbstractActor {
     /* ------------------- Actor constructor ---------------------- */
     public Chatter(int id) {
         this.id = id;
+        this.links = getContext().actorOf(
+                DelayRouter.props(CausalMulticast.LINK_LATENCY, CausalMulticast.LINK_JITTER), "links");
     }
 
     static public Props props(int id) {
@@ -231,7 +235,7 @@ class Chatter extends AbstractActor {
         Collections.shuffle(shuffledGroup);
         for (ActorRef p : shuffledGroup) {
             if (!p.equals(getSelf())) { // not sending to self
-                p.tell(m, getSelf());
+                links.tell(new DelayRouter.Send(p, m), getSelf());
                 crashed = true;
                 return;
             }
@@ -248,13 +252,8 @@ class Chatter extends AbstractActor {
         Collections.shuffle(shuffledGroup);
         for (ActorRef p : shuffledGroup) {
             if (!p.equals(getSelf())) { // not sending to self
-                p.tell(m, getSelf());
+                links.tell(new DelayRouter.Send(p, m), getSelf());
                 message_sent++;
-                try {
-                    Thread.sleep(getRandomNumberInRange(1, 10));
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
             }
         }
         if (message_sent == groups.group.size() - 1)
@@ -373,16 +372,12 @@ class Chatter extends AbstractActor {
                 ActorRef a = iterator.next();
                 if (!a.equals(getSelf())) {
                     m.type = 2;
-                    a.tell(m, getSelf());
+                    links.tell(new DelayRouter.Send(a, m,
+                            CausalMulticast.RESEND_LATENCY, CausalMulticast.RESEND_JITTER), getSelf());
                     if (!justSent) {
                         deliver(m);
                         justSent = true;
                     }
-                    try {
-                        Thread.sleep(getRandomNumberInRange(2, 20));
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
                 }
             }
             I.remove();
@@ -392,12 +387,8 @@ class Chatter extends AbstractActor {
         while (iterator.hasNext()) {
             ActorRef a = iterator.next();
             if (!a.equals(getSelf())) {
-                a.tell(new FlushMsg(viewId), getSelf());
-            }
-            try {
-                Thread.sleep(getRandomNumberInRange(1, 20));
-            } catch (Exception e) {
-                e.printStackTrace();
+                links.tell(new DelayRouter.Send(a, new FlushMsg(viewId),
+                        CausalMulticast.FLUSH_LATENCY, CausalMulticast.FLUSH_JITTER), getSelf());
             }
         }
     }
@@ -17,6 +17,10 @@ import it.unitn.ds1.Chatter.PrintHistoryMsg;
 public class CausalDelivery {
   final private static int N_LISTENERS = 10; // number of listening actors
 
+  // delay of the messages between peers, in [LINK_LATENCY, LINK_LATENCY + LINK_JITTER) ms
+  final private static int LINK_LATENCY = 0;
+  final private static int LINK_JITTER = 10;
+
   public static void main(String[] args) {
     // Create the 'helloakka' actor system
     final ActorSystem system = ActorSystem.create("helloakka");
@@ -26,26 +30,26 @@ public class CausalDelivery {
 
     // the first four peers will be participating in conversations
     group.add(system.actorOf(
-          Chatter.props(id++, "a"),  // this one will start the topic "a"
+          Chatter.props(id++, "a", LINK_LATENCY, LINK_JITTER),  // this one will start the topic "a"
           "chatter0")); 
 
     group.add(system.actorOf(
-          Chatter.props(id++, "a"), // this one will catch up the topic "a"
+          Chatter.props(id++, "a", LINK_LATENCY, LINK_JITTER), // this one will catch up the topic "a"
           "chatter1"));
 
     // TODO 1: create additional actors in a different conversation
 
     group.add(system.actorOf(
-          Chatter.props(id++, "."),  // this one will start the topic "a"
+          Chatter.props(id++, ".", LINK_LATENCY, LINK_JITTER),  // this one will start the topic "a"
           "chatter2")); 
 
     group.add(system.actorOf(
-          Chatter.props(id++, "."), // this one will catch up the topic "a"
+          Chatter.props(id++, ".", LINK_LATENCY, LINK_JITTER), // this one will catch up the topic "a"
           "chatter3"));
 
     // the rest are silent listeners: they don't have topics to discuss
     for (int i=0; i<N_LISTENERS; i++) {
-      group.add(system.actorOf(Chatter.props(id++, null), "listener" + i));
+      group.add(system.actorOf(Chatter.props(id++, null, LINK_LATENCY, LINK_JITTER), "listener" + i));
     }
 
     // ensure that no one can modify the group 
@@ -1,27 +1,24 @@
 package it.unitn.ds1;
 import akka.actor.ActorRef;
 import akka.actor.AbstractActor;
-import java.util.Random;
 import java.io.Serializable;
 import akka.actor.Props;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
-import java.lang.Thread;
-import java.lang.InterruptedException;
 import java.util.Collections;
 
 class Chatter extends AbstractActor {
   
   // number of chat messages to send
   final static int N_MESSAGES = 5;
-  private Random rnd = new Random();
   private List<ActorRef> group; // the list of peers (the multicast group)
   private int sendCount = 0;    // number of sent messages
   private String myTopic;       // The topic I am interested in, null if no topic
   private final int id;         // ID of the current actor
   private int[] vc;             // the local vector clock
+  private final ActorRef links; // simulated links to the peers
 
   // a buffer storing all received chat messages
   private StringBuffer chatHistory = new StringBuffer();
@@ -65,13 +62,14 @@ class Chatter extends AbstractActor {
 
   /* -- Actor constructor --------------------------------------------------- */
 
-  public Chatter(int id, String topic) {
+  public Chatter(int id, String topic, int latency, int jitter) {
     this.id = id;
     this.myTopic = topic;
+    this.links = getContext().actorOf(DelayRouter.props(latency, jitter), "links");
   }
 
-  static public Props props(int id, String topic) {
-    return Props.create(Chatter.class, () -> new Chatter(id, topic));
+  static public Props props(int id, String topic, int latency, int jitter) {
+    return Props.create(Chatter.class, () -> new Chatter(id, topic, latency, jitter));
   }
 
   /* -- Actor behaviour ----------------------------------------------------- */
@@ -101,11 +99,9 @@ class Chatter extends AbstractActor {
     // multicast to all peers in the group (do not send any message to self)
     for (ActorRef p: shuffledGroup) {
       if (!p.equals(getSelf())) {
-        p.tell(m, getSelf());
 
-        // simulate network delays using sleep
-        try { Thread.sleep(rnd.nextInt(10)); }
-        catch (InterruptedException e) { e.printStackTrace(); }
+        // simulate network delays on the link to p
+        links.tell(new DelayRouter.Send(p, m), getSelf());
       }
     }
   }
@@ -0,0 +1,127 @@
+package it.unitn.ds1;
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import scala.concurrent.duration.Duration;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Models the network links from an actor to its peers: the messages the
+// actor sends through its router reach the destination after a delay of
+// latency + a random jitter (ms), with the scheduler taking care of the wait,
+// so no thread is blocked. Like Akka between two actors, each link is FIFO:
+// a message is never delivered before one sent earlier on the same link.
+public class DelayRouter extends AbstractActor {
+
+  // default link delay, in [latency, latency + jitter) ms
+  private final int latency;
+  private final int jitter;
+
+  // messages in transit on each link, in sending order,
+  // and when the last one is due (System.nanoTime)
+  private final Map<ActorRef, Deque<InTransit>> links;
+  private final Map<ActorRef, Long> lastDue;
+
+  private final Random rnd;
+
+  private static class InTransit {
+    final Object msg;
+    final ActorRef sender;
+    InTransit(Object msg, ActorRef sender) {
+      this.msg = msg;
+      this.sender = sender;
+    }
+  }
+
+  /*-- Actor constructors --------------------------------------------------- */
+  public DelayRouter(int latency, int jitter) {
+    this.latency = latency;
+    this.jitter = jitter;
+    this.links = new HashMap<>();
+    this.lastDue = new HashMap<>();
+    this.rnd = new Random();
+  }
+
+  static public Props props(int latency, int jitter) {
+    return Props.create(DelayRouter.class, () -> new DelayRouter(latency, jitter));
+  }
+
+  /*-- Message classes ------------------------------------------------------ */
+
+  // Send a message to an actor, from the sender of this message,
+  // with the default link delay or a specific one
+  public static class Send implements Serializable {
+    public final ActorRef to;
+    public final Serializable msg;
+    public final int latency;   // -1 to use the default
+    public final int jitter;
+    public Send(ActorRef to, Serializable msg) {
+      this(to, msg, -1, 0);
+    }
+    public Send(ActorRef to, Serializable msg, int latency, int jitter) {
+      this.to = to;
+      this.msg = msg;
+      this.latency = latency;
+      this.jitter = jitter;
+    }
+  }
+
+  // The head of the link to an actor is due
+  public static class Deliver implements Serializable {
+    public final ActorRef to;
+    public Deliver(ActorRef to) {
+      this.to = to;
+    }
+  }
+
+  /*-- Actor logic ---------------------------------------------------------- */
+
+  private int delay(Send msg) {
+    int l = msg.latency < 0 ? latency : msg.latency;
+    int j = msg.latency < 0 ? jitter : msg.jitter;
+    return l + (j > 0 ? rnd.nextInt(j) : 0);
+  }
+
+  private void onSend(Send msg) {
+    Deque<InTransit> link = links.computeIfAbsent(msg.to, to -> new ArrayDeque<>());
+    int delay = delay(msg);
+
+    // nothing to wait for
+    if (delay == 0 && link.isEmpty()) {
+      msg.to.tell(msg.msg, getSender());
+      return;
+    }
+
+    // queue behind the messages in transit on the link
+    long now = System.nanoTime();
+    long due = Math.max(now + TimeUnit.MILLISECONDS.toNanos(delay), lastDue.getOrDefault(msg.to, now));
+    lastDue.put(msg.to, due);
+    link.addLast(new InTransit(msg.msg, getSender()));
+
+    // one Deliver per message: when the k-th fires, the k-th message on
+    // the link is due, whichever Deliver it is (timers may fire in any order)
+    getContext().system().scheduler().scheduleOnce(
+            Duration.create(due - now, TimeUnit.NANOSECONDS),   // when the message is due
+            getSelf(),                                          // destination actor reference
+            new Deliver(msg.to),                                // the message to send
+            getContext().system().dispatcher(),                 // system dispatcher
+            getSelf()                                           // source of the message (myself)
+    );
+  }
+
+  private void onDeliver(Deliver msg) {
+    Deque<InTransit> link = links.get(msg.to);
+    InTransit m = link.pollFirst();
+    msg.to.tell(m.msg, m.sender);
+  }
+
+  @Override
+  public Receive createReceive() {
+    return receiveBuilder()
+      .match(Send.class, this::onSend)
+      .match(Deliver.class, this::onDeliver)
+      .build();
+  }
+}
@@ -12,9 +12,9 @@ import java.util.Set;
 import java.util.HashSet;
 import java.util.List;
 import java.util.ArrayList;
-import java.lang.Thread;
-import java.lang.InterruptedException;
 import java.util.Collections;
+import java.util.Map;
+import java.util.HashMap;
 
 
 // The bank branch actor
@@ -22,25 +22,69 @@ public class Bank extends AbstractActor {
   private int id;                                     // bank ID
   private int balance = 1000;                         // balance
   private List<ActorRef> peers = new ArrayList<>();   // list of peer banks
-  private int snapId = 0;                             // current snapshot ID
+  private int snapId = 0;                             // last snapshot ID started
   private Random rnd = new Random();
+  private ActorRef links;                             // simulated links to the peers
+  private int transferInterval;                       // ms between transfers
+  private int snapshotInterval;                       // ms between snapshots
 
   private boolean snapshotInitiator = false;    // the node is a snapshot initiator
-  private boolean stateCaptured = false;        // snapshot in progress
-  private int capturedBalance = 0;              // captured state (balance)
-  private int moneyInTransit = 0;               // "in-transit" messages (money)
-  
-  // set of peers we received a token from 
-  private Set<ActorRef> tokensReceived = new HashSet<>();
+
+  // snapshots in progress, by ID: a new snapshot may start before the
+  // previous ones are over, each one records the channels on its own
+  private Map<Integer, Snapshot> snapshots = new HashMap<>();
+
+  private static class Snapshot {
+    int capturedBalance = 0;              // captured state (balance)
+    int moneyInTransit = 0;               // "in-transit" messages (money)
+
+    // set of peers we received a token from
+    Set<ActorRef> tokensReceived = new HashSet<>();
+
+    // spanning tree of the first tokens: the peer we got our first token from,
+    // the peers that got their first token from us, and the sums of our subtree
+    ActorRef parent = null;
+    Set<ActorRef> children = new HashSet<>();
+    Collected subtree = new Collected();
+    int results = 0;
+  }
+
+  // Lai-Yang mode, without markers: each transfer carries the last snapshot ID
+  // of its sender, and a bank takes the snapshots it missed before receiving
+  // money sent after them; the money in transit on a channel is then the money
+  // sent on it before the snapshot minus the money received from it before the
+  // snapshot, so each bank only reports its state and counters to the initiator;
+  // a channel that received more than it sent would mean an inconsistent cut
+  private boolean laiYang;
+  private Map<ActorRef, Integer> index = new HashMap<>(); // position of each bank in the group
+  private int[] sent;                                     // money sent so far to each bank
+  private int[] received;                                 // money received so far from each bank
+  private Map<Integer, Report> taken = new HashMap<>();   // snapshots not reported yet
+
+  // sums of the reports received by the initiator, by snapshot ID
+  private Map<Integer, Collected> collected = new HashMap<>();
+
+  // sums of the states of some banks (reports: number of banks); in Lai-Yang
+  // mode, the money in transit on each channel, from bank i to bank j
+  private static class Collected {
+    int balance = 0;
+    int moneyInTransit = 0;
+    int reports = 0;
+    int[][] channels = null;
+  }
 
   /*-- Actor constructors --------------------------------------------------- */
-  public Bank(int id, boolean snapshotInitiator) {
+  public Bank(int id, boolean snapshotInitiator, boolean laiYang, int latency, int jitter, int transferInterval, int snapshotInterval) {
     this.id = id;
     this.snapshotInitiator = snapshotInitiator;
+    this.laiYang = laiYang;
+    this.transferInterval = transferInterval;
+    this.snapshotInterval = snapshotInterval;
+    this.links = getContext().actorOf(DelayRouter.props(latency, jitter), "links");
   }
 
-  static public Props props(int id, boolean snapshotInitiator) {
-    return Props.create(Bank.class, () -> new Bank(id, snapshotInitiator));
+  static public Props props(int id, boolean snapshotInitiator, boolean laiYang, int latency, int jitter, int transferInterval, int snapshotInterval) {
+    return Props.create(Bank.class, () -> new Bank(id, snapshotInitiator, laiYang, latency, jitter, transferInterval, snapshotInterval));
   }
 
   /*-- Message classes ------------------------------------------------------ */
@@ -52,18 +96,51 @@ public class Bank extends AbstractActor {
       this.group = Collections.unmodifiableList(new ArrayList<ActorRef>(group));
     }
   }
-  // Money transfer message
+  // Money transfer message, with the last snapshot ID of the sender
   public static class Money implements Serializable {
     public final int amount;
-    public Money(int amount) {
+    public final int snapId;
+    public Money(int amount, int snapId) {
       this.amount = amount;
+      this.snapId = snapId;
     }
   }
-  // Token (snapshot marker)
+  // Token (snapshot marker); fromChild: the sender got its first token from us
   public static class Token implements Serializable {
     public final int snapId;
-    public Token(int snapId) {
+    public final boolean fromChild;
+    public Token(int snapId, boolean fromChild) {
       this.snapId = snapId;
+      this.fromChild = fromChild;
+    }
+  }
+  // State of a subtree of banks in a snapshot, sent up to the parent
+  public static class Result implements Serializable {
+    public final int snapId;
+    public final int balance;
+    public final int moneyInTransit;
+    public final int banks;
+    public Result(int snapId, int balance, int moneyInTransit, int banks) {
+      this.snapId = snapId;
+      this.balance = balance;
+      this.moneyInTransit = moneyInTransit;
+      this.banks = banks;
+    }
+  }
+  // State of a bank in a snapshot, reported to the initiator (Lai-Yang mode),
+  // with the money sent to and received from each bank, by position in the group
+  public static class Report implements Serializable {
+    public final int snapId;
+    public final int bank;
+    public final int balance;
+    public final int[] sent;
+    public final int[] received;
+    public Report(int snapId, int bank, int balance, int[] sent, int[] received) {
+      this.snapId = snapId;
+      this.bank = bank;
+      this.balance = balance;
+      this.sent = sent.clone();
+      this.received = received.clone();
     }
   }
   // Start snapshot request message
@@ -78,7 +155,7 @@ public class Bank extends AbstractActor {
     if(this.snapshotInitiator) {
       Cancellable timer = getContext().system().scheduler().scheduleWithFixedDelay(
               Duration.create(4, TimeUnit.SECONDS),        // when to start generating messages
-              Duration.create(1, TimeUnit.SECONDS),        // how frequently generate them
+              Duration.create(snapshotInterval, TimeUnit.MILLISECONDS),  // how frequently generate them
               getSelf(),                                          // destination actor reference
               new StartSnapshot(),                                // the message to send
               getContext().system().dispatcher(),                 // system dispatcher
@@ -92,27 +169,37 @@ public class Bank extends AbstractActor {
     int to = rnd.nextInt(this.peers.size());
     int amount = 1;
     balance -= amount;    // withdraw money from local account
+    if (laiYang) sent[index.get(peers.get(to))] += amount;
 
-    // model a random network/processing delay
-    try { Thread.sleep(rnd.nextInt(10)); } 
-    catch (InterruptedException e) { e.printStackTrace(); }
-    peers.get(to).tell(new Money(amount), getSelf());
+    // with a random network/processing delay
+    links.tell(new DelayRouter.Send(peers.get(to), new Money(amount, snapId)), getSelf());
   }
 
-  // send tokens to all the peers
-  private void sendTokens() {
-    Token t = new Token(snapId);
+  // send tokens to all the peers, through the same links as the money:
+  // a token must not overtake the money sent before it (FIFO channels);
+  // the token to the parent tells it we are its child
+  private void sendTokens(int snapId, ActorRef parent) {
     for (ActorRef p: peers) {
       //System.out.println("Bank " + id + " sending token to" + p);
-      p.tell(t, getSelf());
+      links.tell(new DelayRouter.Send(p, new Token(snapId, p.equals(parent)), 0, 0), getSelf());
     }
   }
 
-  // capture the current state of the bank
-  private void captureState() {
-    stateCaptured = true;
-    capturedBalance = balance;
-    moneyInTransit = 0;
+  // capture the current state of the bank for a new snapshot
+  private Snapshot captureState(int snapId) {
+    Snapshot s = new Snapshot();
+    s.capturedBalance = balance;
+    snapshots.put(snapId, s);
+    return s;
+  }
+
+  // Lai-Yang: take the snapshots up to snapId not taken yet, all with the
+  // current state, as nothing happened in between
+  private void advanceSnapshots(int snapId) {
+    for (int s = this.snapId + 1; s <= snapId; s++) {
+      taken.put(s, new Report(s, index.get(getSelf()), balance, sent, received));
+    }
+    this.snapId = Math.max(this.snapId, snapId);
   }
 
   private void onJoinGroupMsg(JoinGroupMsg msg) {
@@ -120,7 +207,10 @@ public class Bank extends AbstractActor {
       if (!b.equals(getSelf())) { // copy all bank refs except for self
         this.peers.add(b);
       }
+      index.put(b, index.size());
     }
+    sent = new int[msg.group.size()];
+    received = new int[msg.group.size()];
     System.out.println("" + id + ": starting with " + 
         msg.group.size() + " peer(s)");
     getSelf().tell(new NextTransfer(), getSelf());  // schedule 1st transaction 
@@ -128,44 +218,146 @@ public class Bank extends AbstractActor {
 
   private void onNextTransfer(NextTransfer msg) {
     randomTransfer();
-    getSelf().tell(new NextTransfer(), getSelf());  // schedule next transaction 
+    scheduleNextTransfer();
+  }
+
+  // pace the transfers with the scheduler, without blocking the thread
+  private void scheduleNextTransfer() {
+    if (transferInterval == 0) {
+      getSelf().tell(new NextTransfer(), getSelf());
+      return;
+    }
+    getContext().system().scheduler().scheduleOnce(
+            Duration.create(transferInterval, TimeUnit.MILLISECONDS),  // when to make the transfer
+            getSelf(),                                          // destination actor reference
+            new NextTransfer(),                                 // the message to send
+            getContext().system().dispatcher(),                 // system dispatcher
+            getSelf()                                           // source of the message (myself)
+    );
   }
 
   private void onMoney(Money msg) {
+    if (laiYang) {
+      // money sent after a snapshot we did not take yet: take it first
+      advanceSnapshots(msg.snapId);
+      received[index.get(getSender())] += msg.amount;
+    }
     balance += msg.amount;
 
-    // if we are performing global snapshot and still did not receive
+    // for each global snapshot in progress that still did not receive
     // a token from the money sender, add the money to the "in-transit" sum
-    if (stateCaptured && ! tokensReceived.contains(getSender())) {
-      moneyInTransit += msg.amount;
+    for (Snapshot s: snapshots.values()) {
+      if (! s.tokensReceived.contains(getSender())) {
+        s.moneyInTransit += msg.amount;
+      }
     }
   }
 
   private void onToken(Token token) {
-    this.snapId = token.snapId;
-    tokensReceived.add(getSender());    // memorize the sender of the token
-    if (!stateCaptured) {
-      // it is the first token we received in the current snapshot session
-      // capture the state and send our tokens
-      captureState();
-      sendTokens();
+    if (laiYang) {
+      // the initiator asks for our state in the snapshot (taking it if needed)
+      advanceSnapshots(token.snapId);
+      links.tell(new DelayRouter.Send(getSender(), taken.remove(token.snapId)), getSelf());
+      return;
+    }
+    this.snapId = Math.max(this.snapId, token.snapId);
+    Snapshot s = snapshots.get(token.snapId);
+    if (s == null) {
+      // it is the first token we received in this snapshot session
+      // capture the state and send our tokens; the sender is our parent
+      s = captureState(token.snapId);
+      s.parent = getSender();
+      sendTokens(token.snapId, s.parent);
+    }
+    s.tokensReceived.add(getSender());    // memorize the sender of the token
+    if (token.fromChild) {
+      s.children.add(getSender());
     }
-    // if tokens from all the peers got received we terminate the snapshot
-    if (tokensReceived.containsAll(peers)) {
-      System.out.println("Bank " + id + " snapId: "+ snapId + " state: " + 
-          (capturedBalance + moneyInTransit));
-      capturedBalance = 0;
-      stateCaptured = false;
-      tokensReceived.clear();
+    // if tokens from all the peers got received our state is complete
+    if (s.tokensReceived.containsAll(peers)) {
+      s.subtree.balance += s.capturedBalance;
+      s.subtree.moneyInTransit += s.moneyInTransit;
+      s.subtree.reports++;
+      completeSnapshot(token.snapId, s);
     }
   }
 
+  private void onResult(Result r) {
+    Snapshot s = snapshots.get(r.snapId);
+    s.subtree.balance += r.balance;
+    s.subtree.moneyInTransit += r.moneyInTransit;
+    s.subtree.reports += r.banks;
+    s.results++;
+    completeSnapshot(r.snapId, s);
+  }
+
+  // with our state and the results of all our children, send the sums
+  // of our subtree to the parent; at the initiator, they are the global state
+  private void completeSnapshot(int snapId, Snapshot s) {
+    if (!s.tokensReceived.containsAll(peers) || s.results < s.children.size()) return;
+    snapshots.remove(snapId);
+    if (s.parent == null) {
+      printResult(snapId, s.subtree);
+      return;
+    }
+    Result r = new Result(snapId, s.subtree.balance, s.subtree.moneyInTransit, s.subtree.reports);
+    links.tell(new DelayRouter.Send(s.parent, r), getSelf());
+  }
+
+  private void printResult(int snapId, Collected c) {
+    System.out.println("Bank " + id + " snapId: " + snapId + " total: " +
+        (c.balance + c.moneyInTransit) + " (in transit: " + c.moneyInTransit + ", " + c.reports + " banks)");
+  }
+
+  // Lai-Yang: the money in transit and the inconsistent channels of a snapshot,
+  // once all the banks reported
+  private void printChannels(int snapId, Collected c) {
+    int busy = 0;
+    int inconsistent = 0;
+    for (int[] from: c.channels) {
+      for (int m: from) {
+        if (m > 0) busy++;
+        if (m < 0) inconsistent++;
+      }
+    }
+    System.out.println("Bank " + id + " snapId: " + snapId + " channels with money in transit: " +
+        busy + ", inconsistent: " + inconsistent);
+  }
+
   private void onStartSnapshot(StartSnapshot msg) {
     // we've been asked to initiate a snapshot
     //System.out.println("Bank " + id + " starting snapshot");
+    if (laiYang) {
+      advanceSnapshots(snapId + 1);
+      onReport(taken.remove(snapId));
+      Token t = new Token(snapId, false);
+      for (ActorRef p: peers) {
+        links.tell(new DelayRouter.Send(p, t), getSelf());
+      }
+      return;
+    }
     snapId += 1;
-    captureState();
-    sendTokens();
+    captureState(snapId);
+    sendTokens(snapId, null);
+  }
+
+  private void onReport(Report r) {
+    // add up the states of the banks: on each channel, what was sent
+    // and not received is in transit
+    Collected c = collected.computeIfAbsent(r.snapId, s -> new Collected());
+    if (c.channels == null) c.channels = new int[sent.length][sent.length];
+    c.balance += r.balance;
+    for (int j = 0; j < r.sent.length; j++) {
+      c.channels[r.bank][j] += r.sent[j];
+      c.channels[j][r.bank] -= r.received[j];
+      c.moneyInTransit += r.sent[j] - r.received[j];
+    }
+    c.reports++;
+    if (c.reports == peers.size() + 1) {
+      printResult(r.snapId, c);
+      printChannels(r.snapId, c);
+      collected.remove(r.snapId);
+    }
   }
 
   // Here we define the mapping between the received message types
@@ -178,6 +370,8 @@ public class Bank extends AbstractActor {
       .match(Money.class,         this::onMoney)
       .match(Token.class,         this::onToken)
       .match(StartSnapshot.class, this::onStartSnapshot)
+      .match(Report.class,        this::onReport)
+      .match(Result.class,        this::onResult)
       .build();
   }
 }
@@ -11,14 +11,30 @@ import it.unitn.ds1.Bank.JoinGroupMsg;
 public class BankSystem {
   final static int N_BRANCHES = 10;
 
+  // delay of the messages between branches, in [LINK_LATENCY, LINK_LATENCY + LINK_JITTER) ms
+  final static int LINK_LATENCY = 0;
+  final static int LINK_JITTER = 10;
+
+  // time between the transfers of a branch, ms (0: back to back)
+  final static int TRANSFER_INTERVAL = 5;
+
+  // time between the snapshots started by bank 0, ms; a snapshot may start
+  // while the previous ones are still in progress
+  final static int SNAPSHOT_INTERVAL = 1000;
+
   public static void main(String[] args) {
+
+    // "laiyang": take the snapshots without markers, each transfer telling
+    // the last snapshot of its sender, and the banks reporting to bank 0
+    boolean laiYang = args.length > 0 && args[0].equals("laiyang");
+
     // Create the actor system
     final ActorSystem system = ActorSystem.create("banksystem");
 
     // Create bank branches and put them to a list
     List<ActorRef> group = new ArrayList<>();
     for (int i=0; i<N_BRANCHES; i++) {
-      group.add(system.actorOf(Bank.props(i, i == 0), "bank" + i));
+      group.add(system.actorOf(Bank.props(i, i == 0, laiYang, LINK_LATENCY, LINK_JITTER, TRANSFER_INTERVAL, SNAPSHOT_INTERVAL), "bank" + i));
     }
 
     // Send join messages to the banks to inform them of the whole group
@@ -1,75 +1,402 @@
 import java.io.*;
-import java.util.Arrays;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
 
+// Checks virtual synchrony on the log of a run, in one pass:
+// the log is mapped in memory and split in chunks at line boundaries,
+// the chunks are parsed in parallel into per-view and per-member counters
+// (in maps of primitive keys and values), and the counters are merged at the end.
+// A view is synchronous if the members that install the next view from it
+// delivered the same messages in it (same number, same digest of sender and seqno),
+// counting the messages a member multicasts as delivered to itself.
 public class Check {
   final static int N_NODES = 2; // initial nodes
 
+  // chunks per thread (to even out the work), largest chunk mapped at once,
+  // and words of a line that matter
+  final static int CHUNKS_PER_THREAD = 4;
+  final static int MAX_CHUNK = 1 << 30;
+  final static int MAX_TOKENS = 9;
+
+  //vsmanager view 1 of 3 nodes
+  //vsnodeG1 multicasts 63 in view 6 to 3 nodes
+  //vsnodeJ1 delivers 63 from vsnodeG1 in view 6
+  //vsnodeJ1 installs view 6 [...]
+  final static byte[] VIEW = "view".getBytes(StandardCharsets.US_ASCII);
+  final static byte[] MULTICASTS = "multicasts".getBytes(StandardCharsets.US_ASCII);
+  final static byte[] DELIVERS = "delivers".getBytes(StandardCharsets.US_ASCII);
+  final static byte[] INSTALLS = "installs".getBytes(StandardCharsets.US_ASCII);
+  final static byte[] CRASHED = "(crashed)".getBytes(StandardCharsets.US_ASCII);
+
+  // open addressing map from a long key to two long counters
+  static class LongMap {
+    long[] keys = new long[64];
+    long[] a = new long[64];
+    long[] b = new long[64];
+    boolean[] used = new boolean[64];
+    int size = 0;
+
+    private int slot(long key) {
+      int mask = keys.length - 1;
+      int i = (int) mix(key) & mask;
+      while(used[i] && keys[i] != key) {
+        i = (i + 1) & mask;
+      }
+      return i;
+    }
+
+    void add(long key, long da, long db) {
+      int i = slot(key);
+      if(!used[i]) {
+        used[i] = true;
+        keys[i] = key;
+        if(++size * 2 > keys.length) {
+          grow();
+          i = slot(key);
+        }
+      }
+      a[i] += da;
+      b[i] += db;
+    }
+
+    // the maximum of the counters, rather than the sum
+    void max(long key, long va, long vb) {
+      add(key, 0, 0);
+      int i = slot(key);
+      a[i] = Math.max(a[i], va);
+      b[i] = Math.max(b[i], vb);
+    }
+
+    boolean contains(long key) {
+      return used[slot(key)];
+    }
+
+    long a(long key) {
+      int i = slot(key);
+      return used[i] ? a[i] : 0;
+    }
+
+    long b(long key) {
+      int i = slot(key);
+      return used[i] ? b[i] : 0;
+    }
+
+    private void grow() {
+      long[] oldKeys = keys, oldA = a, oldB = b;
+      boolean[] oldUsed = used;
+      keys = new long[oldKeys.length * 2];
+      a = new long[keys.length];
+      b = new long[keys.length];
+      used = new boolean[keys.length];
+      for(int j = 0; j < oldKeys.length; j++) {
+        if(!oldUsed[j]) continue;
+        int i = slot(oldKeys[j]);
+        used[i] = true;
+        keys[i] = oldKeys[j];
+        a[i] = oldA[j];
+        b[i] = oldB[j];
+      }
+    }
+
+    void addAll(LongMap other) {
+      for(int j = 0; j < other.keys.length; j++) {
+        if(other.used[j]) add(other.keys[j], other.a[j], other.b[j]);
+      }
+    }
+
+    void maxAll(LongMap other) {
+      for(int j = 0; j < other.keys.length; j++) {
+        if(other.used[j]) max(other.keys[j], other.a[j], other.b[j]);
+      }
+    }
+  }
+
+  // counters of a chunk of the log; members are numbered in order of appearance
+  // in the chunk, and renumbered when merging
+  static class Counters {
+    final Map<Long, Integer> memberIds = new HashMap<>();  // name hash -> member
+    final List<String> names = new ArrayList<>();
+    final LongMap nodes = new LongMap();        // view -> nodes (from the manager)
+    final LongMap sentRecv = new LongMap();     // view -> sent, delivered
+    final LongMap delivered = new LongMap();    // view, member -> delivered, digest
+    final LongMap installed = new LongMap();    // view, member -> installed
+  }
+
+  static long mix(long x) {
+    x ^= x >>> 33;
+    x *= 0xff51afd7ed558ccdL;
+    x ^= x >>> 33;
+    x *= 0xc4ceb9fe1a85ec53L;
+    x ^= x >>> 33;
+    return x;
+  }
+
+  static long key(long viewId, int member) {
+    return (viewId << 32) | member;
+  }
+
+  static class Parser {
+    final MappedByteBuffer buf;
+    final Counters c = new Counters();
+    final int[] start = new int[MAX_TOKENS];
+    final int[] end = new int[MAX_TOKENS];
+
+    Parser(MappedByteBuffer buf) {
+      this.buf = buf;
+    }
+
+    boolean is(int t, byte[] word) {
+      if(end[t] - start[t] != word.length) return false;
+      for(int i = 0; i < word.length; i++) {
+        if(buf.get(start[t] + i) != word[i]) return false;
+      }
+      return true;
+    }
+
+    // -1 if not a number
+    long number(int t) {
+      if(end[t] == start[t]) return -1;
+      long n = 0;
+      for(int i = start[t]; i < end[t]; i++) {
+        byte d = buf.get(i);
+        if(d < '0' || d > '9') return -1;
+        n = n * 10 + (d - '0');
+      }
+      return n;
+    }
+
+    long hash(int t) {
+      long h = 0xcbf29ce484222325L;
+      for(int i = start[t]; i < end[t]; i++) {
+        h = (h ^ buf.get(i)) * 0x100000001b3L;
+      }
+      return h;
+    }
+
+    // member of a node name, the name is created only the first time
+    int member(int t) {
+      long h = hash(t);
+      Integer m = c.memberIds.get(h);
+      if(m == null) {
+        byte[] name = new byte[end[t] - start[t]];
+        for(int i = 0; i < name.length; i++) {
+          name[i] = buf.get(start[t] + i);
+        }
+        m = c.names.size();
+        c.memberIds.put(h, m);
+        c.names.add(new String(name, StandardCharsets.US_ASCII));
+      }
+      return m;
+    }
+
+    // the sender is the word at senderToken
+    void deliver(long viewId, int member, int senderToken, long seqno) {
+      long digest = mix(hash(senderToken) * 31 + seqno);
+      c.delivered.add(key(viewId, member), 1, digest);
+
+      // the initial view is not installed
+      if(viewId == 0) c.installed.max(key(0, member), 1, 0);
+    }
+
+    void line(int tokens) {
+      if(tokens < 4) return;
+      if(is(1, VIEW) && tokens >= 5) {
+        long viewId = number(2);
+        long numNodes = number(4);
+        if(viewId >= 0 && numNodes >= 0) c.nodes.max(viewId, numNodes, 0);
+      }
+      else if(is(1, MULTICASTS) && tokens >= 8) {
+        long seqno = number(2);
+        long viewId = number(5);
+        long numSent = number(7);
+        if(seqno < 0 || viewId < 0 || numSent < 0) return;
+        c.sentRecv.add(viewId, numSent, 0);
+        deliver(viewId, member(0), 0, seqno);
+      }
+      else if(is(1, DELIVERS) && tokens >= 8) {
+
+        // crashed nodes deliver only for debugging
+        if(tokens > 8 && is(8, CRASHED)) return;
+        long seqno = number(2);
+        long viewId = number(7);
+        if(seqno < 0 || viewId < 0) return;
+        c.sentRecv.add(viewId, 0, 1);
+        deliver(viewId, member(0), 4, seqno);
+      }
+      else if(is(1, INSTALLS) && is(2, VIEW)) {
+        long viewId = number(3);
+        if(viewId >= 0) c.installed.max(key(viewId, member(0)), 1, 0);
+      }
+    }
+
+    Counters parse() {
+      int tokens = 0;
+      int tokenStart = 0;
+      int limit = buf.limit();
+      for(int i = 0; i <= limit; i++) {
+        byte b = i < limit ? buf.get(i) : (byte) '\n';
+        if(b == ' ' || b == '\n' || b == '\r') {
+          if(i > tokenStart && tokens < MAX_TOKENS) {
+            start[tokens] = tokenStart;
+            end[tokens] = i;
+            tokens++;
+          }
+          tokenStart = i + 1;
+          if(b == '\n') {
+            line(tokens);
+            tokens = 0;
+          }
+        }
+      }
+      return c;
+    }
+  }
+
+  // chunk boundaries: every chunk starts at the beginning of a line
+  static List<long[]> chunks(FileChannel channel, int n) throws IOException {
+    long size = channel.size();
+    long chunkSize = Math.min(Math.max(size / n, 1), MAX_CHUNK);
+    List<long[]> chunks = new ArrayList<>();
+    long start = 0;
+    while(start < size) {
+      long end = Math.min(start + chunkSize, size);
+
+      // move the end after the next newline
+      while(end < size) {
+        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, end, Math.min(1 << 16, size - end));
+        int i = 0;
+        while(i < window.limit() && window.get(i) != '\n') i++;
+        end += i;
+        if(i < window.limit()) {
+          end++;
+          break;
+        }
+      }
+      chunks.add(new long[]{start, end});
+      start = end;
+    }
+    return chunks;
+  }
+
   public static void main(String[] args) {
     String fileName = args[0];
-    String line;
-    SortedMap<Integer, Integer> numNodesInView = new TreeMap<>();
-    SortedMap<Integer, Integer> numSentInView = new TreeMap<>();
-    SortedMap<Integer, Integer> numRecvInView = new TreeMap<>();
-
-    //vsmanager view 1 of 3 nodes
-    //vsnodeG1 multicasts 63 in view 6 to 3 nodes
-    //vsnodeJ1 delivers 63 from vsnodeG1 in view 6
+    int threads = Runtime.getRuntime().availableProcessors();
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
 
     try {
-      BufferedReader reader =
-        new BufferedReader(new FileReader(fileName));
-
-      while((line = reader.readLine()) != null) {
-        String[] l = line.split(" ");
-        System.out.println(Arrays.toString(l));
-        if(l.length < 2) continue;
-        if (l[1].equals("view")) {
-          int viewId = Integer.parseInt(l[2]);
-          int numNodes = Integer.parseInt(l[4]);
-
-          numNodesInView.put(viewId, numNodes);
+      RandomAccessFile file = new RandomAccessFile(fileName, "r");
+      FileChannel channel = file.getChannel();
+
+      // parse the chunks in parallel
+      List<Future<Counters>> parsed = new ArrayList<>();
+      for(long[] chunk : chunks(channel, threads * CHUNKS_PER_THREAD)) {
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]);
+        parsed.add(pool.submit(() -> new Parser(buf).parse()));
+      }
+
+      // merge the counters, renumbering the members by name
+      Map<String, Integer> memberIds = new HashMap<>();
+      List<String> names = new ArrayList<>();
+      LongMap nodes = new LongMap();
+      LongMap sentRecv = new LongMap();
+      LongMap delivered = new LongMap();
+      LongMap installed = new LongMap();
+      for(Future<Counters> f : parsed) {
+        Counters c = f.get();
+        int[] ids = new int[c.names.size()];
+        for(int m = 0; m < ids.length; m++) {
+          String name = c.names.get(m);
+          Integer id = memberIds.get(name);
+          if(id == null) {
+            id = names.size();
+            memberIds.put(name, id);
+            names.add(name);
+          }
+          ids[m] = id;
         }
-        else if (l[1].equals("multicasts")) {
-          int viewId = Integer.parseInt(l[5]);
-          int numSent = Integer.parseInt(l[7]);
-          //int seqnoSent = Integer.parseInt(l[2]);
-
-          numSentInView.compute(viewId, (Integer k, Integer v) -> {
-            if (v==null) return numSent;
-            else return v + numSent;
-          });
-          System.out.println(numSentInView);
+        nodes.maxAll(c.nodes);
+        sentRecv.addAll(c.sentRecv);
+        for(int j = 0; j < c.delivered.keys.length; j++) {
+          if(!c.delivered.used[j]) continue;
+          long k = c.delivered.keys[j];
+          delivered.add(key(k >>> 32, ids[(int) k]), c.delivered.a[j], c.delivered.b[j]);
         }
-        else if (l[1].equals("delivers")) {
-          int viewId = Integer.parseInt(l[7]);
-          //int seqnoRecv = Integer.parseInt(l[2]);
-
-          numRecvInView.compute(viewId, (Integer k, Integer v) -> {
-            if (v==null) return 1;
-            else return v + 1;
-          });
-          System.out.println(numRecvInView);
+        for(int j = 0; j < c.installed.keys.length; j++) {
+          if(!c.installed.used[j]) continue;
+          long k = c.installed.keys[j];
+          installed.max(key(k >>> 32, ids[(int) k]), 1, 0);
         }
       }
-      for (int x : numSentInView.keySet()) {
-        int numNodes = numNodesInView.getOrDefault(x, N_NODES);
-        int numSent = numSentInView.get(x);
-        int numRecv = numRecvInView.getOrDefault(x, 0);
-        
-        System.out.println(
-                "View: " + x
+      channel.close();
+      file.close();
+
+      // views that some member installed, or with messages
+      SortedSet<Long> views = new TreeSet<>();
+      SortedSet<Long> installedViews = new TreeSet<>();
+      for(int j = 0; j < installed.keys.length; j++) {
+        if(installed.used[j]) installedViews.add(installed.keys[j] >>> 32);
+      }
+      for(int j = 0; j < sentRecv.keys.length; j++) {
+        if(sentRecv.used[j]) views.add(sentRecv.keys[j]);
+      }
+      views.addAll(installedViews);
+
+      int synchViews = 0;
+      int checkedViews = 0;
+      for(long x : views) {
+        int numNodes = (int) (nodes.contains(x) ? nodes.a(x) : N_NODES);
+        long numSent = sentRecv.a(x);
+        long numRecv = sentRecv.b(x);
+        String line = "View: " + x
                 + " Nodes: " + numNodes
                 + " Sent: " + numSent
-                + " Recv: " + numRecv
-                + " Synch: " + (numSent == numRecv)
-        );
+                + " Recv: " + numRecv;
+
+        // the members going from this view to the next installed one
+        SortedSet<Long> later = installedViews.tailSet(x + 1);
+        if(later.isEmpty()) {
+          System.out.println(line + " Synch: open (last view)");
+          continue;
+        }
+        long next = later.first();
+        List<Integer> members = new ArrayList<>();
+        for(int m = 0; m < names.size(); m++) {
+          if(installed.contains(key(x, m)) && installed.contains(key(next, m))) {
+            members.add(m);
+          }
+        }
+
+        // they must have delivered the same messages
+        boolean synch = true;
+        for(int m : members) {
+          long k = key(x, m), first = key(x, members.get(0));
+          if(delivered.a(k) != delivered.a(first) || delivered.b(k) != delivered.b(first)) {
+            synch = false;
+          }
+        }
+        checkedViews++;
+        if(synch) synchViews++;
+        line += " Members: " + members.size() + " Synch: " + synch;
+        if(!synch) {
+          StringBuilder counts = new StringBuilder();
+          for(int m : members) {
+            counts.append(counts.length() == 0 ? " (" : ", ")
+                    .append(names.get(m)).append(" ").append(delivered.a(key(x, m)));
+          }
+          line += counts + ")";
+        }
+        System.out.println(line);
       }
-      reader.close();
+      System.out.println(synchViews + " of " + checkedViews + " view changes synchronous");
     }
     catch(Exception ex) {
       ex.printStackTrace();
     }
+    finally {
+      pool.shutdown();
+    }
   }
 }
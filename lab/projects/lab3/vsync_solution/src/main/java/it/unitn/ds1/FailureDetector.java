@@ -0,0 +1,200 @@
+package it.unitn.ds1;
+import akka.actor.*;
+import scala.concurrent.duration.Duration;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import it.unitn.ds1.VirtualSynchManager.CrashReportMsg;
+
+// Heartbeat failure detector of the manager, independent of the chat traffic.
+// It pings the members of the view every heartbeatInterval ms, and keeps the
+// intervals between the heartbeats of each member; a member is suspected when
+// the phi of its silence exceeds phiThreshold (phi accrual failure detector):
+// phi = -log10(P(the next heartbeat comes even later)), with the intervals
+// taken as normally distributed. A higher threshold gives fewer false
+// suspicions (about one in 10^phi), and a later detection.
+public class FailureDetector extends AbstractActor {
+
+  // intervals kept for each member, phi checks between two pings
+  // (for a detection closer to the threshold), width of the histogram buckets (ms)
+  final static int MAX_SAMPLES = 100;
+  final static int CHECKS_PER_PING = 4;
+  final static int HISTOGRAM_BUCKET = 100;
+
+  private final int heartbeatInterval;
+  private final double phiThreshold;
+
+  // the intervals vary by a few ms on a quiet network:
+  // do not suspect a member for a delay of that order
+  private final double minStdDeviation;
+
+  // heartbeat history of the monitored members
+  private final Map<ActorRef, History> members;
+
+  // time without heartbeats before each suspicion, in HISTOGRAM_BUCKET ms buckets
+  private final SortedMap<Integer, Integer> detectionTimes;
+  private int suspected;
+
+  private Cancellable timer;
+  private int checks;
+
+  private static class History {
+    final long[] intervals = new long[MAX_SAMPLES];
+    int size = 0;
+    int next = 0;
+    double sum = 0;
+    double sumSquares = 0;
+    long lastHeartbeat;
+
+    // start from the expected interval, with some deviation, until there are samples
+    History(long now, int expected) {
+      lastHeartbeat = now;
+      add(expected - expected / 4);
+      add(expected + expected / 4);
+    }
+
+    void add(long interval) {
+      if(size == MAX_SAMPLES) {
+        sum -= intervals[next];
+        sumSquares -= (double) intervals[next] * intervals[next];
+      }
+      else {
+        size++;
+      }
+      intervals[next] = interval;
+      next = (next + 1) % MAX_SAMPLES;
+      sum += interval;
+      sumSquares += (double) interval * interval;
+    }
+
+    void heartbeat(long now) {
+      add(now - lastHeartbeat);
+      lastHeartbeat = now;
+    }
+
+    // with the logistic approximation of the normal distribution
+    double phi(long now, double minStdDeviation) {
+      double mean = sum / size;
+      double std = Math.max(Math.sqrt(Math.max(sumSquares / size - mean * mean, 0)), minStdDeviation);
+      double y = (now - lastHeartbeat - mean) / std;
+      double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+      if(now - lastHeartbeat > mean) {
+        return -Math.log10(e / (1.0 + e));
+      }
+      return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+  }
+
+  /*-- Actor constructors --------------------------------------------------- */
+  public FailureDetector(int heartbeatInterval, double phiThreshold) {
+    this.heartbeatInterval = heartbeatInterval;
+    this.phiThreshold = phiThreshold;
+    this.minStdDeviation = heartbeatInterval / 4.0;
+    this.members = new HashMap<>();
+    this.detectionTimes = new TreeMap<>();
+    this.suspected = 0;
+    this.checks = 0;
+  }
+
+  static public Props props(int heartbeatInterval, double phiThreshold) {
+    return Props.create(FailureDetector.class, () -> new FailureDetector(heartbeatInterval, phiThreshold));
+  }
+
+  /*-- Message classes ------------------------------------------------------ */
+
+  // the members to monitor (the view of the manager)
+  public static class MonitorMsg implements Serializable {
+    public final Set<ActorRef> members;
+    public MonitorMsg(Set<ActorRef> members) {
+      this.members = Collections.unmodifiableSet(new HashSet<>(members));
+    }
+  }
+
+  public static class PingMsg implements Serializable {}
+
+  public static class HeartbeatMsg implements Serializable {}
+
+  public static class CheckMsg implements Serializable {}
+
+  /*-- Actor logic ---------------------------------------------------------- */
+
+  @Override
+  public void preStart() {
+    timer = getContext().system().scheduler().scheduleWithFixedDelay(
+            Duration.create(heartbeatInterval, TimeUnit.MILLISECONDS),  // when to start checking
+            Duration.create(heartbeatInterval / CHECKS_PER_PING, TimeUnit.MILLISECONDS),  // how frequently check
+            getSelf(),                                          // destination actor reference
+            new CheckMsg(),                                     // the message to send
+            getContext().system().dispatcher(),                 // system dispatcher
+            getSelf()                                           // source of the message (myself)
+    );
+  }
+
+  @Override
+  public void postStop() {
+    timer.cancel();
+    System.out.println(getSelf().path().name() + " suspected " + suspected + " nodes, phi threshold "
+            + phiThreshold + ", heartbeat every " + heartbeatInterval + " ms");
+    for(Map.Entry<Integer, Integer> e : detectionTimes.entrySet()) {
+      int from = e.getKey() * HISTOGRAM_BUCKET;
+      System.out.println(String.format("  detection %5d-%5d ms: %3d ", from, from + HISTOGRAM_BUCKET, e.getValue())
+              + String.join("", Collections.nCopies(e.getValue(), "#")));
+    }
+  }
+
+  private void onMonitorMsg(MonitorMsg msg) {
+    long now = System.currentTimeMillis();
+    members.keySet().retainAll(msg.members);
+    for(ActorRef m : msg.members) {
+      members.putIfAbsent(m, new History(now, heartbeatInterval));
+    }
+  }
+
+  private void onHeartbeatMsg(HeartbeatMsg msg) {
+    History h = members.get(getSender());
+    if(h != null) {
+      h.heartbeat(System.currentTimeMillis());
+    }
+  }
+
+  private void onCheckMsg(CheckMsg msg) {
+    long now = System.currentTimeMillis();
+
+    // suspect the members that have been silent for too long
+    Set<ActorRef> crashed = new HashSet<>();
+    for(Map.Entry<ActorRef, History> e : members.entrySet()) {
+      double phi = e.getValue().phi(now, minStdDeviation);
+      if(phi > phiThreshold) {
+        long silent = now - e.getValue().lastHeartbeat;
+        System.out.println(
+                getSelf().path().name() + " suspects " + e.getKey().path().name()
+                        + String.format(" (phi %.1f after %d ms)", phi, silent)
+        );
+        detectionTimes.merge((int) (silent / HISTOGRAM_BUCKET), 1, Integer::sum);
+        suspected++;
+        crashed.add(e.getKey());
+      }
+    }
+    if(!crashed.isEmpty()) {
+      members.keySet().removeAll(crashed);
+      getContext().getParent().tell(new CrashReportMsg(crashed), getSelf());
+    }
+
+    // ping the others, once every CHECKS_PER_PING checks
+    if(checks++ % CHECKS_PER_PING != 0) return;
+    for(ActorRef m : members.keySet()) {
+      m.tell(new PingMsg(), getSelf());
+    }
+  }
+
+  @Override
+  public Receive createReceive() {
+    return receiveBuilder()
+            .match(MonitorMsg.class,  this::onMonitorMsg)
+            .match(HeartbeatMsg.class,  this::onHeartbeatMsg)
+            .match(CheckMsg.class,  this::onCheckMsg)
+            .build();
+  }
+}
@@ -0,0 +1,206 @@
+package it.unitn.ds1;
+
+import java.util.*;
+
+import it.unitn.ds1.VirtualSynchActor.ChatMsg;
+
+// Chat messages indexed by view, then by sender (its member index) and sequence
+// number. Dropping the old views removes whole buckets, and the messages of a view
+// are found without going through the others, so view changes stay cheap
+// even with many pending messages. Messages are the same if they have the
+// same view, sender and sequence number (e.g., when resent during a flush).
+// Within a view, the senders are slots of an array and their messages slots of
+// another one, so finding a message neither hashes nor boxes anything.
+public class MsgBuffer {
+
+  // the messages of a sender in a view, by seqno from first on
+  // (the seqnos of a sender in a view are consecutive, with few gaps)
+  private static class Bucket {
+    int first;
+    ChatMsg[] msgs = new ChatMsg[4];
+    int size;
+
+    ChatMsg get(int seqno) {
+      int i = seqno - first;
+      return i < 0 || i >= msgs.length ? null : msgs[i];
+    }
+
+    // returns false if the message was there already
+    boolean put(ChatMsg m) {
+      if(size == 0) {
+        first = m.seqno;
+      }
+      else if(m.seqno < first) {
+
+        // make room at the front
+        int shift = first - m.seqno;
+        ChatMsg[] grown = new ChatMsg[Math.max(msgs.length, lastIndex() + 1 + shift)];
+        System.arraycopy(msgs, 0, grown, shift, lastIndex() + 1);
+        msgs = grown;
+        first = m.seqno;
+      }
+      int i = m.seqno - first;
+      if(i >= msgs.length) {
+        msgs = Arrays.copyOf(msgs, Math.max(i + 1, msgs.length * 2));
+      }
+      if(msgs[i] != null) return false;
+      msgs[i] = m;
+      size++;
+      return true;
+    }
+
+    ChatMsg remove(int seqno) {
+      ChatMsg m = get(seqno);
+      if(m != null) {
+        msgs[seqno - first] = null;
+        size--;
+      }
+      return m;
+    }
+
+    // drop the messages up to seqno (included), returns how many
+    int removeUpTo(int seqno) {
+      int n = Math.min(seqno - first + 1, msgs.length);
+      if(n <= 0) return 0;
+      int removed = 0;
+      for(int i = 0; i < n; i++) {
+        if(msgs[i] != null) removed++;
+      }
+      System.arraycopy(msgs, n, msgs, 0, msgs.length - n);
+      Arrays.fill(msgs, msgs.length - n, msgs.length, null);
+      first += n;
+      size -= removed;
+      return removed;
+    }
+
+    private int lastIndex() {
+      int i = msgs.length - 1;
+      while(i > 0 && msgs[i] == null) i--;
+      return i;
+    }
+
+    void addTo(List<ChatMsg> list) {
+      for(ChatMsg m : msgs) {
+        if(m != null) list.add(m);
+      }
+    }
+  }
+
+  // the buckets of a view, by member index of the sender
+  private static class View {
+    Bucket[] senders = new Bucket[VirtualSynchActor.INITIAL_MEMBERS];
+    int size;
+
+    Bucket get(int senderIndex) {
+      return senderIndex < senders.length ? senders[senderIndex] : null;
+    }
+  }
+
+  private final TreeMap<Integer, View> views;
+  private int size;
+
+  public MsgBuffer() {
+    this.views = new TreeMap<>();
+    this.size = 0;
+  }
+
+  public void add(ChatMsg m) {
+    View v = views.computeIfAbsent(m.viewId, k -> new View());
+    if(m.senderIndex >= v.senders.length) {
+      v.senders = Arrays.copyOf(v.senders, Math.max(m.senderIndex + 1, v.senders.length * 2));
+    }
+    Bucket bucket = v.senders[m.senderIndex];
+    if(bucket == null) {
+      bucket = new Bucket();
+      v.senders[m.senderIndex] = bucket;
+    }
+    if(bucket.put(m)) {
+      v.size++;
+      size++;
+    }
+  }
+
+  public boolean remove(ChatMsg m) {
+    View v = views.get(m.viewId);
+    if(v == null) return false;
+    Bucket bucket = v.get(m.senderIndex);
+    if(bucket == null || bucket.remove(m.seqno) == null) return false;
+    size--;
+
+    // do not keep empty buckets around
+    if(bucket.size == 0) v.senders[m.senderIndex] = null;
+    if(--v.size == 0) views.remove(m.viewId);
+    return true;
+  }
+
+  public boolean contains(ChatMsg m) {
+    return get(m.viewId, m.senderIndex, m.seqno) != null;
+  }
+
+  // the message of a sender with a sequence number in a view, null if missing
+  public ChatMsg get(int viewId, int senderIndex, int seqno) {
+    View v = views.get(viewId);
+    if(v == null) return null;
+    Bucket bucket = v.get(senderIndex);
+    return bucket == null ? null : bucket.get(seqno);
+  }
+
+  // drop the messages of a sender up to a sequence number (included), in all views
+  public void removeUpTo(int senderIndex, int seqno) {
+    Iterator<View> it = views.values().iterator();
+    while(it.hasNext()) {
+      View v = it.next();
+      Bucket bucket = v.get(senderIndex);
+      if(bucket == null) continue;
+      int removed = bucket.removeUpTo(seqno);
+      size -= removed;
+      v.size -= removed;
+      if(bucket.size == 0) v.senders[senderIndex] = null;
+      if(v.size == 0) it.remove();
+    }
+  }
+
+  // whether there is any message of a sender, in any view
+  public boolean hasFrom(int senderIndex) {
+    for(View v : views.values()) {
+      if(v.get(senderIndex) != null) return true;
+    }
+    return false;
+  }
+
+  // messages of a view, in order of sequence number for each sender
+  public List<ChatMsg> inView(int viewId) {
+    return inViews(viewId, viewId);
+  }
+
+  // messages of the views from first to last (included), view by view,
+  // then by member index of the sender and by sequence number
+  public List<ChatMsg> inViews(int first, int last) {
+    List<ChatMsg> msgs = new ArrayList<>();
+    if(first > last) return msgs;
+    for(View v : views.subMap(first, true, last, true).values()) {
+      for(Bucket bucket : v.senders) {
+        if(bucket != null) bucket.addTo(msgs);
+      }
+    }
+    return msgs;
+  }
+
+  // drop the messages of all views before the given one
+  public void removeViewsBefore(int viewId) {
+    SortedMap<Integer, View> old = views.headMap(viewId);
+    for(View v : old.values()) {
+      size -= v.size;
+    }
+    old.clear();
+  }
+
+  public void clear() {
+    views.clear();
+    size = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+}
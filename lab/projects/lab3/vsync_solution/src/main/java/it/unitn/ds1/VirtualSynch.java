@@ -14,18 +14,35 @@ import it.unitn.ds1.VirtualSynchActor.RecoveryMsg;
 public class VirtualSynch {
   final static int N_NODES = 2;
 
+  // delay of the messages between nodes, in [LINK_LATENCY, LINK_LATENCY + LINK_JITTER) ms
+  final static int LINK_LATENCY = 0;
+  final static int LINK_JITTER = 10;
+
+  // the manager merges the membership changes within this window (ms) in one view
+  final static int VIEW_CHANGE_WINDOW = 100;
+
+  // failure detector of the manager: the nodes answer a heartbeat request every
+  // HEARTBEAT_INTERVAL ms, and are suspected when the phi of their silence exceeds
+  // PHI_THRESHOLD; a higher threshold makes false suspicions rarer, detection later
+  final static int HEARTBEAT_INTERVAL = 200;
+  final static double PHI_THRESHOLD = 8.0;
+
   public static void main(String[] args) {
 
+    // "total": deliver the messages of a view in the same order at every node,
+    // as decided by the manager; the nodes report throughput and latency when stopping
+    boolean totalOrder = args.length > 0 && args[0].equals("total");
+
     // Create the actor system
     final ActorSystem system = ActorSystem.create("vssystem");
 
     // Create a "virtual synchrony manager"
-    ActorRef manager = system.actorOf(VirtualSynchManager.props(), "vsmanager");
+    ActorRef manager = system.actorOf(VirtualSynchManager.props(VIEW_CHANGE_WINDOW, HEARTBEAT_INTERVAL, PHI_THRESHOLD), "vsmanager");
 
     // Create nodes and put them to a list
     List<ActorRef> group = new ArrayList<>();
     for (int i=0; i<N_NODES; i++) {
-      group.add(system.actorOf(VirtualSynchActor.props(manager, false), "vsnodeG" + i));
+      group.add(system.actorOf(VirtualSynchActor.props(manager, false, totalOrder, LINK_LATENCY, LINK_JITTER), "vsnodeG" + i));
     }
 
     // Send join messages to the manager and the nodes to inform them of the whole group
@@ -38,8 +55,8 @@ public class VirtualSynch {
     inputContinue();
 
     // Create new nodes and make them join the existing group
-    ActorRef joiningFirst = system.actorOf(VirtualSynchActor.props(manager, true), "vsnodeJ0");
-    ActorRef joiningSecond = system.actorOf(VirtualSynchActor.props(manager, true), "vsnodeJ1");
+    ActorRef joiningFirst = system.actorOf(VirtualSynchActor.props(manager, true, totalOrder, LINK_LATENCY, LINK_JITTER), "vsnodeJ0");
+    ActorRef joiningSecond = system.actorOf(VirtualSynchActor.props(manager, true, totalOrder, LINK_LATENCY, LINK_JITTER), "vsnodeJ1");
 
     inputContinue();
 
@@ -6,14 +6,38 @@ import java.io.Serializable;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 
+import it.unitn.ds1.FailureDetector.HeartbeatMsg;
+import it.unitn.ds1.FailureDetector.PingMsg;
 import it.unitn.ds1.VirtualSynchManager.CrashReportMsg;
 import it.unitn.ds1.VirtualSynchManager.JoinNodeMsg;
+import it.unitn.ds1.VirtualSynchManager.OrderRequestMsg;
 
 public class VirtualSynchActor extends AbstractActor {
 
+  // a sender tells the group which of its messages are stable with its next
+  // chat message, or with a digest after STABLE_DIGEST_DELAY ms without sending;
+  // members suspect a sender whose messages do not become stable in STABLE_TIMEOUT ms
+  final static int STABLE_DIGEST_DELAY = 1000;
+  final static int STABLE_TIMEOUT = 2000;
+
+  // room for the per-node state, grown when a larger member index shows up
+  final static int INITIAL_MEMBERS = 8;
+
+  // total order mode: a member asks the sequencer for the order of its messages
+  // in batches of up to ORDER_REQUEST_BATCH_SIZE, at most ORDER_REQUEST_DELAY ms
+  // after the first message
+  final static int ORDER_REQUEST_BATCH_SIZE = 32;
+  final static int ORDER_REQUEST_DELAY = 5;
+
   // message sequence number for identification
   private int seqno;
 
+  // last own message sent to the whole view, and last one the group knows is stable
+  private int stableSeqno;
+  private int reportedSeqno;
+  private long lastChatTime;
+  private boolean digestScheduled;
+
   // group manager
   private final ActorRef manager;
 
@@ -26,20 +50,66 @@ public class VirtualSynchActor extends AbstractActor {
   private final Map<Integer, Set<ActorRef>> proposedView;
   private int viewId;
 
+  // index of this node in the group, assigned by the manager: the messages carry
+  // the index of their sender, and the per-node state below is indexed by it,
+  // so delivering a message neither hashes actor references nor boxes numbers
+  private int memberIndex;
+
   // last sequence number for each node message (to avoid delivering duplicates)
-  private final Map<ActorRef, Integer> membersSeqno;
+  private int[] membersSeqno;
+
+  // last stable sequence number for each node, since when we wait for its
+  // unstable messages to become stable (0 if not waiting), and nodes with
+  // a stability timeout pending
+  private int[] membersStableSeqno;
+  private long[] unstableSince;
+  private boolean[] stableTimeouts;
 
   // unstable messages
-  private final Set<ChatMsg> unstableMsgSet;
+  private final MsgBuffer unstableMsgs;
 
   // deferred messages (of a future view)
-  private final Set<ChatMsg> deferredMsgSet;
+  private final MsgBuffer deferredMsgs;
+
+  // total order mode: messages of the view waiting for their turn, orders received
+  // from the sequencer (the manager) for each view, and next order to deliver
+  private final boolean totalOrder;
+  private final MsgBuffer heldMsgs;
+  private final Map<Integer, Order> orders;
+  private int nextOrder;
+
+  // own messages of a view not ordered yet: their seqnos are consecutive,
+  // so a request only tells the first and how many
+  private int orderRequestViewId;
+  private int orderRequestFirst;
+  private int orderRequestCount;
+  private boolean orderRequestScheduled;
+
+  // delivery statistics, reported when the node stops
+  private int delivered;
+  private long latencySum;
+  private long latencyMax;
+  private long firstDelivery;
+  private long lastDelivery;
+
+  // time spent with sends blocked by view changes
+  private long viewChangeSince;
+  private long blockedTime;
+  private int viewChanges;
 
   // group view flushes
   private final Map<Integer, Set<ActorRef>> flushes;
 
+  // unstable messages resent during the ongoing view change,
+  // and the nodes that all of them reached
+  private final MsgBuffer resentMsgs;
+  private final Set<ActorRef> resentTo;
+
   private final Random rnd;
 
+  // simulated network links to the other nodes
+  private final ActorRef links;
+
   // type of the next simulated crash
   enum CrashType {
     NONE,
@@ -52,26 +122,73 @@ public class VirtualSynchActor extends AbstractActor {
   // number of transmissions before crashing
   private int nextCrashAfter;
 
+  // the messages of a view in the order decided by the sequencer
+  // (by member index of the sender and seqno)
+  private static class Order {
+    int[] senderIndexes = new int[64];
+    int[] seqnos = new int[64];
+    int size = 0;
+
+    void add(OrderMsg msg) {
+      int n = msg.seqnos.length;
+      if(size + n > seqnos.length) {
+        int capacity = Math.max(size + n, seqnos.length * 2);
+        senderIndexes = Arrays.copyOf(senderIndexes, capacity);
+        seqnos = Arrays.copyOf(seqnos, capacity);
+      }
+      System.arraycopy(msg.senderIndexes, 0, senderIndexes, size, n);
+      System.arraycopy(msg.seqnos, 0, seqnos, size, n);
+      size += n;
+    }
+  }
+
   /*-- Actor constructors --------------------------------------------------- */
-  public VirtualSynchActor(ActorRef manager, boolean joining) {
+  public VirtualSynchActor(ActorRef manager, boolean joining, boolean totalOrder, int latency, int jitter) {
     this.manager = manager;
     this.seqno = 1;
+    this.stableSeqno = 0;
+    this.reportedSeqno = 0;
+    this.lastChatTime = 0;
+    this.digestScheduled = false;
     this.joining = joining;
     this.viewId = 0;
     this.group = new HashSet<>();
     this.currentView = new HashSet<>();
     this.proposedView = new HashMap<>();
-    this.membersSeqno = new HashMap<>();
-    this.unstableMsgSet = new HashSet<>();
-    this.deferredMsgSet = new HashSet<>();
+    this.memberIndex = -1;
+    this.membersSeqno = new int[INITIAL_MEMBERS];
+    this.membersStableSeqno = new int[INITIAL_MEMBERS];
+    this.unstableSince = new long[INITIAL_MEMBERS];
+    this.stableTimeouts = new boolean[INITIAL_MEMBERS];
+    this.unstableMsgs = new MsgBuffer();
+    this.deferredMsgs = new MsgBuffer();
+    this.totalOrder = totalOrder;
+    this.heldMsgs = new MsgBuffer();
+    this.orders = new HashMap<>();
+    this.nextOrder = 0;
+    this.orderRequestViewId = 0;
+    this.orderRequestFirst = 0;
+    this.orderRequestCount = 0;
+    this.orderRequestScheduled = false;
+    this.delivered = 0;
+    this.latencySum = 0;
+    this.latencyMax = 0;
+    this.firstDelivery = 0;
+    this.lastDelivery = 0;
+    this.viewChangeSince = 0;
+    this.blockedTime = 0;
+    this.viewChanges = 0;
     this.flushes = new HashMap<>();
+    this.resentMsgs = new MsgBuffer();
+    this.resentTo = new HashSet<>();
     this.rnd = new Random();
+    this.links = getContext().actorOf(DelayRouter.props(latency, jitter), "links");
     this.nextCrash = CrashType.NONE;
     this.nextCrashAfter = 0;
   }
 
-  static public Props props(ActorRef manager, boolean joining) {
-    return Props.create(VirtualSynchActor.class, () -> new VirtualSynchActor(manager, joining));
+  static public Props props(ActorRef manager, boolean joining, boolean totalOrder, int latency, int jitter) {
+    return Props.create(VirtualSynchActor.class, () -> new VirtualSynchActor(manager, joining, totalOrder, latency, jitter));
   }
 
   /*-- Message classes ------------------------------------------------------ */
@@ -86,41 +203,80 @@ public class VirtualSynchActor extends AbstractActor {
 
   public static class SendChatMsg implements Serializable {}
 
+  // senderIndex: member index of the sender;
+  // stableSeqno: all the messages of the sender up to it are stable;
+  // sentAt: when the message was multicast, to measure the delivery latency
   public static class ChatMsg implements Serializable {
-    public final Integer viewId;
+    public final int viewId;
     public final ActorRef sender;
-    public final Integer seqno;
+    public final int senderIndex;
+    public final int seqno;
+    public final int stableSeqno;
+    public final long sentAt;
     public final String content;
-    public ChatMsg(int viewId, ActorRef sender, int seqno, String content) {
+    public ChatMsg(int viewId, ActorRef sender, int senderIndex, int seqno, int stableSeqno, long sentAt, String content) {
       this.viewId = viewId;
       this.sender = sender;
+      this.senderIndex = senderIndex;
       this.seqno = seqno;
+      this.stableSeqno = stableSeqno;
+      this.sentAt = sentAt;
       this.content = content;
     }
   }
 
+  // digest sent when there was no chat message to tell about stability:
+  // all the messages of the sender up to stableSeqno are stable
   public static class StableChatMsg implements Serializable {
-    public final ChatMsg stableMsg;
-    public StableChatMsg(ChatMsg stableMsg) {
-      this.stableMsg = stableMsg;
+    public final int senderIndex;
+    public final int stableSeqno;
+    public StableChatMsg(int senderIndex, int stableSeqno) {
+      this.senderIndex = senderIndex;
+      this.stableSeqno = stableSeqno;
     }
   }
 
+  public static class SendStableMsg implements Serializable {}
+
+  public static class SendOrderRequestMsg implements Serializable {}
+
   public static class StableTimeoutMsg implements Serializable {
-    public final ChatMsg unstableMsg;
     public final ActorRef sender;
-    public StableTimeoutMsg(ChatMsg unstableMsg, ActorRef sender) {
-      this.unstableMsg = unstableMsg;
+    public final int senderIndex;
+    public StableTimeoutMsg(ActorRef sender, int senderIndex) {
       this.sender = sender;
+      this.senderIndex = senderIndex;
     }
   }
 
+  // the sequencer orders the messages of the view from firstOrder on;
+  // senderIndexes: member index of the sender of each message
+  public static class OrderMsg implements Serializable {
+    public final int viewId;
+    public final int firstOrder;
+    public final int[] senderIndexes;
+    public final int[] seqnos;
+    public OrderMsg(int viewId, int firstOrder, int[] senderIndexes, int[] seqnos) {
+      this.viewId = viewId;
+      this.firstOrder = firstOrder;
+      this.senderIndexes = senderIndexes;
+      this.seqnos = seqnos;
+    }
+  }
+
+  // memberIndexes: the member index of each node in the proposed view
   public static class ViewChangeMsg implements Serializable {
     public final Integer viewId;
     public final Set<ActorRef> proposedView;
-    public ViewChangeMsg(int viewId, Set<ActorRef> proposedView) {
+    public final Map<ActorRef, Integer> memberIndexes;
+    public ViewChangeMsg(int viewId, Set<ActorRef> proposedView, Map<ActorRef, Integer> memberIndexes) {
       this.viewId = viewId;
       this.proposedView = Collections.unmodifiableSet(new HashSet<>(proposedView));
+      Map<ActorRef, Integer> indexes = new HashMap<>();
+      for(ActorRef r : proposedView) {
+        indexes.put(r, memberIndexes.get(r));
+      }
+      this.memberIndexes = Collections.unmodifiableMap(indexes);
     }
   }
 
@@ -170,6 +326,19 @@ public class VirtualSynchActor extends AbstractActor {
     );
   }
 
+  @Override
+  public void postStop() {
+    if(delivered == 0) return;
+    double seconds = Math.max(lastDelivery - firstDelivery, 1) / 1000.0;
+    System.out.println(
+            getSelf().path().name() + " delivered " + delivered + " messages"
+                    + (totalOrder ? " in total order" : " unordered")
+                    + String.format(", %.1f msg/s, latency avg %.1f ms max %d ms",
+                            delivered / seconds, (double) latencySum / delivered, latencyMax)
+                    + ", sends blocked " + blockedTime + " ms in " + viewChanges + " view changes"
+    );
+  }
+
   /*-- Helper methods ---------------------------------------------------------- */
 
   private int multicast(Serializable m, Set<ActorRef> multicastGroup) {
@@ -183,14 +352,9 @@ public class VirtualSynchActor extends AbstractActor {
         }
       }
 
-      // send m to r (except to self)
+      // send m to r (except to self), with a random network/processing delay
       if (!r.equals(getSelf())) {
-
-        // model a random network/processing delay
-        try { Thread.sleep(rnd.nextInt(10)); }
-        catch (InterruptedException e) { e.printStackTrace(); }
-
-        r.tell(m, getSelf());
+        links.tell(new DelayRouter.Send(r, m), getSelf());
         i++;
       }
     }
@@ -199,6 +363,9 @@ public class VirtualSynchActor extends AbstractActor {
   }
 
   private void putInFlushes(int viewId, ActorRef flushSender) {
+    if(!isViewChanging()) {
+      viewChangeSince = System.currentTimeMillis();
+    }
     Set<ActorRef> flushed = flushes.getOrDefault(viewId, new HashSet<>());
     flushed.add(flushSender);
     flushes.put(viewId, flushed);
@@ -220,9 +387,25 @@ public class VirtualSynchActor extends AbstractActor {
     return !flushes.isEmpty();
   }
   
+  // make room for the state of a member index
+  private void ensureMember(int index) {
+    if(index < membersSeqno.length) return;
+    int size = Math.max(index + 1, membersSeqno.length * 2);
+    membersSeqno = Arrays.copyOf(membersSeqno, size);
+    membersStableSeqno = Arrays.copyOf(membersStableSeqno, size);
+    unstableSince = Arrays.copyOf(unstableSince, size);
+    stableTimeouts = Arrays.copyOf(stableTimeouts, size);
+  }
+
   private void deliver(ChatMsg m, boolean deferred) {
-    if(membersSeqno.getOrDefault(m.sender, 0) < m.seqno) {
-      membersSeqno.put(m.sender, m.seqno);
+    if(membersSeqno[m.senderIndex] < m.seqno) {
+      membersSeqno[m.senderIndex] = m.seqno;
+      long now = System.currentTimeMillis();
+      if(delivered == 0) firstDelivery = now;
+      lastDelivery = now;
+      delivered++;
+      latencySum += now - m.sentAt;
+      latencyMax = Math.max(latencyMax, now - m.sentAt);
       System.out.println(
               getSelf().path().name() + " delivers " + m.seqno
               + " from " + m.sender.path().name() + " in view " + (deferred ? m.viewId : this.viewId) // TODO
@@ -231,37 +414,162 @@ public class VirtualSynchActor extends AbstractActor {
     }
   }
 
+  private void scheduleStableDigest(long delay) {
+    digestScheduled = true;
+    getContext().system().scheduler().scheduleOnce(
+            Duration.create(delay, TimeUnit.MILLISECONDS),      // when to send the message
+            getSelf(),                                          // destination actor reference
+            new SendStableMsg(),                                // the message to send
+            getContext().system().dispatcher(),                 // system dispatcher
+            getSelf()                                           // source of the message (myself)
+    );
+  }
+
+  private void scheduleStableTimeout(ActorRef sender, int senderIndex, long delay) {
+    stableTimeouts[senderIndex] = true;
+    getContext().system().scheduler().scheduleOnce(
+            Duration.create(delay, TimeUnit.MILLISECONDS),      // when to send the message
+            getSelf(),                                          // destination actor reference
+            new StableTimeoutMsg(sender, senderIndex),          // the message to send
+            getContext().system().dispatcher(),                 // system dispatcher
+            getSelf()                                           // source of the message (myself)
+    );
+  }
+
+  // the messages of a sender up to stableSeqno are stable
+  private void updateStable(int senderIndex, int stableSeqno) {
+    if(stableSeqno <= membersStableSeqno[senderIndex]) return;
+    membersStableSeqno[senderIndex] = stableSeqno;
+    unstableMsgs.removeUpTo(senderIndex, stableSeqno);
+
+    // the sender is making progress: wait again for the rest
+    if(unstableSince[senderIndex] != 0) {
+      unstableSince[senderIndex] = System.currentTimeMillis();
+    }
+  }
+
+  // total order: ask for the order of an own message along with the next ones
+  private void requestOrder(ChatMsg m) {
+
+    // the sequencer ignores the requests of the old views
+    if(orderRequestCount > 0 && orderRequestViewId != m.viewId) {
+      orderRequestCount = 0;
+    }
+    if(orderRequestCount == 0) {
+      orderRequestViewId = m.viewId;
+      orderRequestFirst = m.seqno;
+    }
+    orderRequestCount++;
+    if(orderRequestCount >= ORDER_REQUEST_BATCH_SIZE) {
+      sendOrderRequest();
+    }
+    else if(!orderRequestScheduled) {
+      orderRequestScheduled = true;
+      getContext().system().scheduler().scheduleOnce(
+              Duration.create(ORDER_REQUEST_DELAY, TimeUnit.MILLISECONDS),  // when to send the request
+              getSelf(),                                          // destination actor reference
+              new SendOrderRequestMsg(),                          // the message to send
+              getContext().system().dispatcher(),                 // system dispatcher
+              getSelf()                                           // source of the message (myself)
+      );
+    }
+  }
+
+  private void sendOrderRequest() {
+    manager.tell(new OrderRequestMsg(orderRequestViewId, orderRequestFirst, orderRequestCount), getSelf());
+    orderRequestCount = 0;
+  }
+
+  // emulate a crash; the node keeps logging what it receives, as delivered
+  // right away (see onCrashedChatMsg), starting with the messages it held
+  private void crash() {
+    getContext().become(crashed());
+    for(ChatMsg m : heldMsgs.inView(this.viewId)) {
+      onCrashedChatMsg(m);
+    }
+    heldMsgs.clear();
+  }
+
   private boolean canDeliver(int viewId) {
     return this.viewId == viewId;
   }
 
+  // total order: deliver the held messages of the view that are next in order
+  private void deliverOrdered() {
+    Order o = orders.get(this.viewId);
+    while(o != null && nextOrder < o.size) {
+
+      // own messages are not delivered to self
+      int senderIndex = o.senderIndexes[nextOrder];
+      if(senderIndex != memberIndex) {
+        ChatMsg m = heldMsgs.get(this.viewId, senderIndex, o.seqnos[nextOrder]);
+        if(m == null) return;   // not received yet
+        heldMsgs.remove(m);
+        deliver(m, false);
+      }
+      nextOrder++;
+    }
+  }
+
+  // total order: deliver what is left of the views before nextViewId the same
+  // way at every member, the messages with an order first (skipping those that
+  // nobody received), then the others by sender and sequence number, as the
+  // buffer lists them;
+  // virtual synchrony ensures that the members have the same messages of a view
+  private void flushOrdered(int prevViewId, int nextViewId) {
+    for(int v = prevViewId; v < nextViewId; v++) {
+      for(ChatMsg m : deferredMsgs.inView(v)) {
+        heldMsgs.add(m);
+      }
+
+      // a joining node delivers only those messages related to the first view
+      if(joining) continue;
+
+      Order o = orders.get(v);
+      for(int i = (v == this.viewId ? nextOrder : 0); o != null && i < o.size; i++) {
+        ChatMsg m = heldMsgs.get(v, o.senderIndexes[i], o.seqnos[i]);
+        if(m != null) {
+          heldMsgs.remove(m);
+          deliver(m, v != this.viewId);
+        }
+      }
+      for(ChatMsg m : heldMsgs.inView(v)) {
+        deliver(m, v != this.viewId);
+      }
+    }
+
+    // the messages of the new view wait for their order
+    for(ChatMsg m : deferredMsgs.inView(nextViewId)) {
+      heldMsgs.add(m);
+    }
+  }
+
   private void deferredDeliver(int prevViewId, int nextViewId) {
 
     // a joining node delivers only those messages related to the first view
     if(joining) {
-      for (ChatMsg m : deferredMsgSet) {
-        if (m.viewId == nextViewId) {
-          deliver(m, true);
-        }
+      for (ChatMsg m : deferredMsgs.inView(nextViewId)) {
+        deliver(m, true);
       }
       return;
     }
 
     // due to multiple crashes, some views may not have been installed;
     // make sure you deliver all pending messages between views
-    for(int i = prevViewId; i <= nextViewId; i++) {
-      for (ChatMsg m : deferredMsgSet) {
-        if (m.viewId == i) {
-          deliver(m, true);
-        }
-      }
+    for (ChatMsg m : deferredMsgs.inViews(prevViewId, nextViewId)) {
+      deliver(m, true);
     }
   }
 
   private void installView(int viewId) {
 
     // check if there are messages waiting to be delivered in the new view
-    deferredDeliver(this.viewId, viewId);
+    if(totalOrder) {
+      flushOrdered(this.viewId, viewId);
+    }
+    else {
+      deferredDeliver(this.viewId, viewId);
+    }
 
     // update view ID
     this.viewId = viewId;
@@ -270,8 +578,17 @@ public class VirtualSynchActor extends AbstractActor {
 
     // remove flushes, unstable and deferred messages of the old views
     flushes.entrySet().removeIf(entry -> entry.getKey() < this.viewId);
-    unstableMsgSet.removeIf(unstableMsg -> unstableMsg.viewId < this.viewId);
-    deferredMsgSet.removeIf(deferredMsg -> deferredMsg.viewId <= this.viewId);
+    resentMsgs.clear();
+    resentTo.clear();
+    if(!isViewChanging()) {
+      blockedTime += System.currentTimeMillis() - viewChangeSince;
+      viewChanges++;
+    }
+    unstableMsgs.removeViewsBefore(this.viewId);
+    deferredMsgs.removeViewsBefore(this.viewId + 1);
+    heldMsgs.removeViewsBefore(this.viewId);
+    orders.keySet().removeIf(v -> v < this.viewId);
+    nextOrder = 0;
 
     //System.out.println(getSelf().path().name() + " flushes after view change " + this.viewId + " " + flushes);
 
@@ -289,14 +606,20 @@ public class VirtualSynchActor extends AbstractActor {
 
     // a joining node is a full member now
     joining = false;
+
+    // messages of the new view may have been ordered already
+    if(totalOrder) {
+      deliverOrdered();
+    }
   }
 
   /*-- Actor message handlers ---------------------------------------------------------- */
 
   private void onJoinGroupMsg(JoinGroupMsg msg) {
 
-    // initialize group
+    // initialize group; the member index of the initial nodes is their position
     group.addAll(msg.group);
+    memberIndex = msg.group.indexOf(getSelf());
 
     // at the beginning, the view includes all nodes in the group
     currentView.addAll(group);
@@ -318,8 +641,8 @@ public class VirtualSynchActor extends AbstractActor {
 
     // prepare chat message and add it to the unstable set
     String content = "Message " + seqno + " in view " + currentView;
-    ChatMsg m = new ChatMsg(viewId, getSelf(), seqno, content);
-    unstableMsgSet.add(m);
+    ChatMsg m = new ChatMsg(viewId, getSelf(), memberIndex, seqno, stableSeqno, System.currentTimeMillis(), content);
+    unstableMsgs.add(m);
 
     // send message to the group
     int numSent = multicast(m, currentView);
@@ -334,30 +657,63 @@ public class VirtualSynchActor extends AbstractActor {
 
     // check if the node should crash
     if(nextCrash.name().equals(CrashType.ChatMsg.name())) {
-      getContext().become(crashed());
+      crash();
       return;
     }
 
-    // after the message has been sent, it is stable for the sender
-    unstableMsgSet.remove(m);
+    // ask the sequencer for the order of the message
+    if(totalOrder) {
+      requestOrder(m);
+    }
+
+    // after the message has been sent, it is stable for the sender;
+    // the others know with our next message, or with a digest if we stay silent
+    unstableMsgs.remove(m);
+    reportedSeqno = Math.max(reportedSeqno, m.stableSeqno);
+    stableSeqno = m.seqno;
+    lastChatTime = System.currentTimeMillis();
+    if(!digestScheduled) {
+      scheduleStableDigest(STABLE_DIGEST_DELAY);
+    }
+  }
+
+  private void onSendStableMsg(SendStableMsg msg) {
+    digestScheduled = false;
+    if(reportedSeqno >= stableSeqno) return;
+
+    // we sent something recently: stability will go along with the next message
+    long idle = System.currentTimeMillis() - lastChatTime;
+    if(idle < STABLE_DIGEST_DELAY) {
+      scheduleStableDigest(STABLE_DIGEST_DELAY - idle);
+      return;
+    }
 
-    // broadcast stabilization message
-    multicast(new StableChatMsg(m), currentView);
+    // broadcast stabilization digest
+    multicast(new StableChatMsg(memberIndex, stableSeqno), currentView);
+    reportedSeqno = stableSeqno;
 
     // check if the node should crash
     if(nextCrash.name().equals(CrashType.StableChatMsg.name())) {
-      getContext().become(crashed());
+      crash();
+    }
+  }
+
+  private void onSendOrderRequestMsg(SendOrderRequestMsg msg) {
+    orderRequestScheduled = false;
+    if(orderRequestCount > 0) {
+      sendOrderRequest();
     }
   }
 
   private void onChatMsg(ChatMsg msg) {
+    ensureMember(msg.senderIndex);
 
     // joining nodes ignore incoming messages,
     // unless those that may belong to the first view that will be installed eventually
     if(joining) {
       if(isViewChanging() && !getSelf().equals(msg.sender)) {
         System.out.println(getSelf().path().name() + " deferred (joining) " + msg.seqno + " from " + msg.sender.path().name());
-        deferredMsgSet.add(msg);
+        deferredMsgs.add(msg);
       }
       return;
     }
@@ -365,45 +721,85 @@ public class VirtualSynchActor extends AbstractActor {
     // ignore own messages (may have been sent during flush protocol)
     if(getSelf().equals(msg.sender)) return;
 
-    // the node will deliver the message, but it will also be kept in the unstable set;
-    // if the initiator crashes, we can retransmit the unstable message
-    unstableMsgSet.add(msg);
+    // the node will deliver the message, but it will also be kept in the unstable set
+    // (unless known to be stable); if the initiator crashes, we can retransmit it
+    if(msg.seqno > membersStableSeqno[msg.senderIndex]) {
+      unstableMsgs.add(msg);
+    }
 
-    // deliver immediately or add to deferred to deliver in a future view
-    if(canDeliver(msg.viewId)) {
+    // deliver immediately (or in order) or add to deferred to deliver in a future view
+    if(canDeliver(msg.viewId) && totalOrder) {
+      heldMsgs.add(msg);
+      deliverOrdered();
+    }
+    else if(canDeliver(msg.viewId)) {
       deliver(msg, false);
     }
     else {
       System.out.println(getSelf().path().name() + " deferred " + msg.seqno + " from " + msg.sender.path().name());
-      deferredMsgSet.add(msg);
+      deferredMsgs.add(msg);
     }
 
-    // send message to self in order to timeout while waiting stabilization;
-    // schedule timeout only if the message was sent by the original initiator,
+    // the message also tells which earlier messages of the sender are stable
+    updateStable(msg.senderIndex, msg.stableSeqno);
+
+    // wait for stabilization, with a single timeout per sender;
+    // only for messages sent by the original initiator,
     // this way we prevent setting a timeout during flush protocol
     if(getSender().equals(msg.sender)) {
-      getContext().system().scheduler().scheduleOnce(
-              Duration.create(1000, TimeUnit.MILLISECONDS),  // how frequently generate them
-              getSelf(),                                          // destination actor reference
-              new StableTimeoutMsg(msg, getSender()),             // the message to send
-              getContext().system().dispatcher(),                 // system dispatcher
-              getSelf()                                           // source of the message (myself)
-      );
+      if(unstableSince[msg.senderIndex] == 0) {
+        unstableSince[msg.senderIndex] = System.currentTimeMillis();
+      }
+      if(!stableTimeouts[msg.senderIndex]) {
+        scheduleStableTimeout(msg.sender, msg.senderIndex, STABLE_TIMEOUT);
+      }
+    }
+  }
+
+  private void onOrderMsg(OrderMsg msg) {
+    Order o = orders.computeIfAbsent(msg.viewId, v -> new Order());
+
+    // batches come in order from the sequencer
+    if(msg.firstOrder != o.size) return;
+    o.add(msg);
+    if(msg.viewId == this.viewId && !joining) {
+      deliverOrdered();
     }
   }
 
+  // answer the failure detector of the manager (through the network)
+  private void onPingMsg(PingMsg msg) {
+    links.tell(new DelayRouter.Send(getSender(), new HeartbeatMsg()), getSelf());
+  }
+
   private void onStableChatMsg(StableChatMsg msg) {
-    unstableMsgSet.remove(msg.stableMsg);
+    ensureMember(msg.senderIndex);
+    updateStable(msg.senderIndex, msg.stableSeqno);
   }
 
   private void onStableTimeoutMsg(StableTimeoutMsg msg) {
 
-    // check if the message is still unstable
-    if(!unstableMsgSet.contains(msg.unstableMsg)) return;
+    // ignore the timers set before a crash (the node forgot them on recovery)
+    if(!stableTimeouts[msg.senderIndex]) return;
+    stableTimeouts[msg.senderIndex] = false;
+
+    // check if the sender still has unstable messages
+    if(!unstableMsgs.hasFrom(msg.senderIndex)) {
+      unstableSince[msg.senderIndex] = 0;
+      return;
+    }
+
+    // check if they have been unstable for long enough
+    long waited = System.currentTimeMillis() - unstableSince[msg.senderIndex];
+    if(waited < STABLE_TIMEOUT) {
+      scheduleStableTimeout(msg.sender, msg.senderIndex, STABLE_TIMEOUT - waited);
+      return;
+    }
 
     // alert the manager about the crashed node
+    unstableSince[msg.senderIndex] = 0;
     Set<ActorRef> crashed = new HashSet<>();
-    crashed.add(msg.unstableMsg.sender);
+    crashed.add(msg.sender);
     manager.tell(new CrashReportMsg(crashed), getSelf());
   }
 
@@ -411,9 +807,12 @@ public class VirtualSynchActor extends AbstractActor {
 
     // deliver immediately or ignore the message;
     // used to debug virtual synchrony correctness
+    // (own messages may come back, resent by the others during a flush)
+    if(getSelf().equals(msg.sender)) return;
+    ensureMember(msg.senderIndex);
     if(msg.viewId >= this.viewId) {
-      if(membersSeqno.getOrDefault(msg.sender, 0) < msg.seqno) {
-        membersSeqno.put(msg.sender, msg.seqno);
+      if(membersSeqno[msg.senderIndex] < msg.seqno) {
+        membersSeqno[msg.senderIndex] = msg.seqno;
         System.out.println(
                 getSelf().path().name() + " delivers " + msg.seqno
                         + " from " + msg.sender.path().name() + " in view " + msg.viewId
@@ -435,24 +834,37 @@ public class VirtualSynchActor extends AbstractActor {
     // and this one may not be part of the view yet
     if(!msg.proposedView.contains(getSelf())) return;
 
+    // skip the proposals superseded by a newer one: they will not be
+    // installed, the node flushes directly to the newest view
+    for(int v : proposedView.keySet()) {
+      if(v > msg.viewId) return;
+    }
+    proposedView.keySet().removeIf(v -> v < msg.viewId);
+
     // store the proposed view to begin transition
     proposedView.put(msg.viewId, new HashSet<>(msg.proposedView));
-
-    // first, send all unstable messages (to the nodes in the new view)
-    for(ChatMsg unstableMsg : unstableMsgSet) {
-      boolean resend = unstableMsg.viewId == this.viewId;
-      System.out.println(getSelf().path().name() + " may resend (" + resend + ") " + unstableMsg.seqno + " from " + unstableMsg.sender.path().name());
-      if(resend) {
-        multicast(unstableMsg, proposedView.get(msg.viewId));
-      }
+    memberIndex = msg.memberIndexes.get(getSelf());
+
+    // first, send all unstable messages of the current view (to the nodes in the new view),
+    // except to the nodes that got them already for a superseded proposal
+    Set<ActorRef> newNodes = new HashSet<>(msg.proposedView);
+    newNodes.removeAll(resentTo);
+    for(ChatMsg unstableMsg : unstableMsgs.inView(this.viewId)) {
+      Set<ActorRef> to = resentMsgs.contains(unstableMsg) ? newNodes : proposedView.get(msg.viewId);
+      if(to.isEmpty()) continue;
+      System.out.println(getSelf().path().name() + " resends " + unstableMsg.seqno + " from " + unstableMsg.sender.path().name());
+      multicast(unstableMsg, to);
+      resentMsgs.add(unstableMsg);
     }
+    resentTo.clear();
+    resentTo.addAll(msg.proposedView);
 
     // then, multicast flush messages
     multicast(new ViewFlushMsg(msg.viewId - 1), proposedView.get(msg.viewId));
 
     // check if the node should crash
     if(nextCrash.name().equals(CrashType.ViewFlushMsg.name())) {
-      getContext().become(crashed());
+      crash();
     }
 
     // add self to already flushed for the previous view
@@ -469,7 +881,7 @@ public class VirtualSynchActor extends AbstractActor {
       getContext().system().scheduler().scheduleOnce(
               Duration.create(500, TimeUnit.MILLISECONDS), // how frequently generate them
               getSelf(),                                          // destination actor reference
-              new FlushTimeoutMsg(this.viewId),                   // the message to send
+              new FlushTimeoutMsg(msg.viewId - 1),                // the message to send
               getContext().system().dispatcher(),                 // system dispatcher
               getSelf()                                           // source of the message (myself)
       );
@@ -491,8 +903,9 @@ public class VirtualSynchActor extends AbstractActor {
   private void onFlushTimeoutMsg(FlushTimeoutMsg msg) {
     //System.out.println(getSelf().path().name() + " timeouts with current flushes " + flushes);
 
-    // check if there still are missing flushes
-    if(!flushes.containsKey(msg.viewId)) return;
+    // check if there still are missing flushes,
+    // unless the proposal was installed or superseded meanwhile
+    if(!flushes.containsKey(msg.viewId) || !proposedView.containsKey(msg.viewId + 1)) return;
 
     // find all nodes whose flush has not been received
     Set<ActorRef> crashed = new HashSet<>(proposedView.get(msg.viewId + 1));
@@ -505,13 +918,24 @@ public class VirtualSynchActor extends AbstractActor {
     nextCrashAfter = msg.nextCrashAfter;
     flushes.clear();
     proposedView.clear();
-    deferredMsgSet.clear();
+    deferredMsgs.clear();
   }
 
   private void onRecoveryMsg(RecoveryMsg msg) {
     joining = true;
     nextCrash = CrashType.NONE;
     nextCrashAfter = 0;
+
+    // timers that expired while crashed are gone
+    digestScheduled = false;
+    orderRequestScheduled = false;
+    orderRequestCount = 0;
+    Arrays.fill(stableTimeouts, false);
+    Arrays.fill(unstableSince, 0);
+    heldMsgs.clear();
+    orders.clear();
+    resentMsgs.clear();
+    resentTo.clear();
     getContext().become(createReceive());
     manager.tell(new JoinNodeMsg(), getSelf());
 
@@ -532,13 +956,17 @@ public class VirtualSynchActor extends AbstractActor {
     return receiveBuilder()
             .match(JoinGroupMsg.class,  this::onJoinGroupMsg)
             .match(SendChatMsg.class,  this::onSendChatMsg)
+            .match(SendStableMsg.class,  this::onSendStableMsg)
+            .match(SendOrderRequestMsg.class,  this::onSendOrderRequestMsg)
             .match(ChatMsg.class,  this::onChatMsg)
             .match(StableChatMsg.class,  this::onStableChatMsg)
+            .match(OrderMsg.class,  this::onOrderMsg)
             .match(StableTimeoutMsg.class,  this::onStableTimeoutMsg)
             .match(ViewChangeMsg.class,  this::onViewChangeMsg)
             .match(ViewFlushMsg.class,  this::onViewFlushMsg)
             .match(FlushTimeoutMsg.class,  this::onFlushTimeoutMsg)
             .match(CrashMsg.class, this::onCrashMsg)
+            .match(PingMsg.class, this::onPingMsg)
             .match(RecoveryMsg.class, msg -> System.out.println(getSelf().path().name() + " ignoring RecoveryMsg"))
             .build();
   }
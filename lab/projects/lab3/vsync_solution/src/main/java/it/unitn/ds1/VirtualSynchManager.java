@@ -1,28 +1,70 @@
 package it.unitn.ds1;
 import akka.actor.*;
+import scala.concurrent.duration.Duration;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
+import it.unitn.ds1.FailureDetector.MonitorMsg;
 import it.unitn.ds1.VirtualSynchActor.JoinGroupMsg;
+import it.unitn.ds1.VirtualSynchActor.OrderMsg;
 import it.unitn.ds1.VirtualSynchActor.ViewChangeMsg;
 
 public class VirtualSynchManager extends AbstractActor {
 
+  // in total order mode, the manager is the sequencer: it numbers the messages
+  // of the view in the order their requests arrive, and tells the view in batches
+  // of up to ORDER_BATCH_SIZE, at most ORDER_BATCH_DELAY ms after the first request
+  final static int ORDER_BATCH_SIZE = 32;
+  final static int ORDER_BATCH_DELAY = 10;
+
   // participants (initial group, current and proposed views)
   private final List<ActorRef> group;
   private final Set<ActorRef> view;
   private int viewId;
 
+  // membership changes within viewChangeWindow ms go in the same view:
+  // the last view proposed, and the changes since then
+  private final int viewChangeWindow;
+  private final Set<ActorRef> proposedView;
+  private final List<String> changes;
+  private boolean viewChangeScheduled;
+
+  // member index of each node that ever joined, kept when it joins again
+  private final Map<ActorRef, Integer> memberIndexes;
+
+  // heartbeat failure detector, monitoring the nodes in the view
+  private final ActorRef detector;
+
+  // order of the next message in the view, and the requests not sent yet
+  private int nextOrder;
+  // (by member index of the sender and seqno, batchSize of them)
+  private int[] batchSenderIndexes;
+  private int[] batchSeqnos;
+  private int batchSize;
+  private boolean batchScheduled;
+
   /*-- Actor constructors --------------------------------------------------- */
-  public VirtualSynchManager() {
+  public VirtualSynchManager(int viewChangeWindow, int heartbeatInterval, double phiThreshold) {
     group = new ArrayList<>();
     view = new HashSet<>(group);
     viewId = 0;
+    this.viewChangeWindow = viewChangeWindow;
+    proposedView = new HashSet<>();
+    changes = new ArrayList<>();
+    viewChangeScheduled = false;
+    memberIndexes = new HashMap<>();
+    nextOrder = 0;
+    batchSenderIndexes = new int[ORDER_BATCH_SIZE];
+    batchSeqnos = new int[ORDER_BATCH_SIZE];
+    batchSize = 0;
+    batchScheduled = false;
+    detector = getContext().actorOf(FailureDetector.props(heartbeatInterval, phiThreshold), "vsdetector");
   }
 
-  static public Props props() {
-    return Props.create(VirtualSynchManager.class, VirtualSynchManager::new);
+  static public Props props(int viewChangeWindow, int heartbeatInterval, double phiThreshold) {
+    return Props.create(VirtualSynchManager.class, () -> new VirtualSynchManager(viewChangeWindow, heartbeatInterval, phiThreshold));
   }
 
   /*-- Message classes ------------------------------------------------------ */
@@ -36,6 +78,23 @@ public class VirtualSynchManager extends AbstractActor {
 
   public static class JoinNodeMsg implements Serializable {}
 
+  // a member asks for the order of count of its messages, with consecutive
+  // seqnos from firstSeqno on
+  public static class OrderRequestMsg implements Serializable {
+    public final int viewId;
+    public final int firstSeqno;
+    public final int count;
+    public OrderRequestMsg(int viewId, int firstSeqno, int count) {
+      this.viewId = viewId;
+      this.firstSeqno = firstSeqno;
+      this.count = count;
+    }
+  }
+
+  public static class SendOrderMsg implements Serializable {}
+
+  public static class SendViewChangeMsg implements Serializable {}
+
   /*-- Actor logic ---------------------------------------------------------- */
 
   @Override
@@ -48,24 +107,75 @@ public class VirtualSynchManager extends AbstractActor {
     }
   }
 
+  // send the pending orders to the view; this happens before any view change,
+  // so the members know every order of a view before they flush it
+  private void sendOrders() {
+    if(batchSize == 0) return;
+    OrderMsg m = new OrderMsg(viewId, nextOrder - batchSize,
+            Arrays.copyOf(batchSenderIndexes, batchSize), Arrays.copyOf(batchSeqnos, batchSize));
+    multicast(m);
+    batchSize = 0;
+  }
+
   private void onJoinGroupMsg(JoinGroupMsg msg) {
 
-    // initialize group
+    // initialize group; the member index of the initial nodes is their position
     for (ActorRef r: msg.group) {
       if (!r.equals(getSelf())) {
         this.group.add(r);
+        memberIndexes.put(r, memberIndexes.size());
       }
     }
 
     // at the beginning, the view includes all nodes in the group
     view.addAll(group);
+    proposedView.addAll(group);
+    detector.tell(new MonitorMsg(view), getSelf());
     //System.out.println(getSelf().path().name() + " initial view " + view);
   }
 
+  // a membership change: propose a new view when the window closes,
+  // together with the changes arriving in the meantime
+  private void viewChanged(String change) {
+    changes.add(change);
+    detector.tell(new MonitorMsg(view), getSelf());
+    if(viewChangeWindow == 0) {
+      proposeView();
+    }
+    else if(!viewChangeScheduled) {
+      viewChangeScheduled = true;
+      getContext().system().scheduler().scheduleOnce(
+              Duration.create(viewChangeWindow, TimeUnit.MILLISECONDS),  // when to propose the view
+              getSelf(),                                          // destination actor reference
+              new SendViewChangeMsg(),                            // the message to send
+              getContext().system().dispatcher(),                 // system dispatcher
+              getSelf()                                           // source of the message (myself)
+      );
+    }
+  }
+
+  // update view ID and notify nodes, if the changes did not cancel out
+  private void proposeView() {
+    if(!view.equals(proposedView)) {
+      sendOrders();
+      viewId++;
+      nextOrder = 0;
+      proposedView.clear();
+      proposedView.addAll(view);
+      ViewChangeMsg m = new ViewChangeMsg(viewId, view, memberIndexes);
+      System.out.println(
+              getSelf().path().name() + " view " + m.viewId
+              + " of " + m.proposedView.size() + " nodes "
+              + " (" + String.join(", ", changes) + ") " + m.proposedView
+      );
+      multicast(m);
+    }
+    changes.clear();
+  }
+
   private void onCrashReportMsg(CrashReportMsg msg) {
 
-    // remove the crashed node from view;
-    // if the view changed, update view ID and notify nodes
+    // remove the crashed node from view
     boolean viewChange = false;
     for(ActorRef crashed : msg.crashedMembers) {
       if(view.remove(crashed)) {
@@ -73,34 +183,62 @@ public class VirtualSynchManager extends AbstractActor {
       }
     }
     if(viewChange) {
-      viewId++;
-      ViewChangeMsg m = new ViewChangeMsg(viewId, view);
-      System.out.println(
-              getSelf().path().name() + " view " + m.viewId
-              + " of " + m.proposedView.size() + " nodes "
-              + " (" + msg.crashedMembers + " crashed - reported by "
-              + getSender().path().name() + ") " + m.proposedView
-      );
-      multicast(m);
+      viewChanged(msg.crashedMembers + " crashed - reported by " + getSender().path().name());
     }
   }
 
   private void onJoinNodeMsg(JoinNodeMsg msg) {
 
-    // add node to view;
-    // if the view changed, update view ID and notify nodes
+    // add node to view
+    memberIndexes.putIfAbsent(getSender(), memberIndexes.size());
     if(view.add(getSender())) {
-      viewId++;
-      ViewChangeMsg m = new ViewChangeMsg(viewId, view);
-      System.out.println(
-              getSelf().path().name() + " view " + m.viewId
-                      + " of " + m.proposedView.size() + " nodes "
-                      + " (" + getSender() + " joining) " + m.proposedView
+      viewChanged(getSender() + " joining");
+    }
+  }
+
+  private void onSendViewChangeMsg(SendViewChangeMsg msg) {
+    viewChangeScheduled = false;
+    proposeView();
+  }
+
+  private void onOrderRequestMsg(OrderRequestMsg msg) {
+
+    // the members deliver the messages of an old view at the view change
+    if(msg.viewId != viewId) return;
+
+    // a request may not fit in the rest of the batch
+    if(batchSize + msg.count > batchSeqnos.length) {
+      int capacity = Math.max(batchSize + msg.count, batchSeqnos.length * 2);
+      batchSenderIndexes = Arrays.copyOf(batchSenderIndexes, capacity);
+      batchSeqnos = Arrays.copyOf(batchSeqnos, capacity);
+    }
+    int senderIndex = memberIndexes.get(getSender());
+    for(int i = 0; i < msg.count; i++) {
+      batchSenderIndexes[batchSize] = senderIndex;
+      batchSeqnos[batchSize] = msg.firstSeqno + i;
+      batchSize++;
+    }
+    nextOrder += msg.count;
+    if(batchSize >= ORDER_BATCH_SIZE) {
+      sendOrders();
+    }
+    else if(!batchScheduled) {
+      batchScheduled = true;
+      getContext().system().scheduler().scheduleOnce(
+              Duration.create(ORDER_BATCH_DELAY, TimeUnit.MILLISECONDS),  // when to send the batch
+              getSelf(),                                          // destination actor reference
+              new SendOrderMsg(),                                 // the message to send
+              getContext().system().dispatcher(),                 // system dispatcher
+              getSelf()                                           // source of the message (myself)
       );
-      multicast(m);
     }
   }
 
+  private void onSendOrderMsg(SendOrderMsg msg) {
+    batchScheduled = false;
+    sendOrders();
+  }
+
   // Here we define the mapping between the received message types
   // and our actor methods
   @Override
@@ -109,6 +247,9 @@ public class VirtualSynchManager extends AbstractActor {
             .match(JoinGroupMsg.class,  this::onJoinGroupMsg)
             .match(JoinNodeMsg.class,  this::onJoinNodeMsg)
             .match(CrashReportMsg.class,  this::onCrashReportMsg)
+            .match(OrderRequestMsg.class,  this::onOrderRequestMsg)
+            .match(SendOrderMsg.class,  this::onSendOrderMsg)
+            .match(SendViewChangeMsg.class,  this::onSendViewChangeMsg)
             .build();
   }
 }
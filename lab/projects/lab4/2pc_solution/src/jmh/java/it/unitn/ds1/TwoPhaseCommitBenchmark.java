@@ -0,0 +1,233 @@
+package it.unitn.ds1;
+
+import akka.actor.ActorRef;
+import akka.actor.AbstractActor;
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import scala.concurrent.duration.Duration;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import it.unitn.ds1.TwoPhaseCommit.Decision;
+import it.unitn.ds1.TwoPhaseCommit.InjectCrashes;
+import it.unitn.ds1.TwoPhaseCommit.Protocol;
+import it.unitn.ds1.TwoPhaseCommit.StartTransaction;
+import it.unitn.ds1.TwoPhaseCommit.TransactionDone;
+import it.unitn.ds1.TwoPhaseCommit.Vote;
+import it.unitn.ds1.TwoPhaseCommit.VoteResponse;
+
+// Each invocation runs one transaction from start to the decision of every
+// participant, on a group created once per trial in an in-process actor system.
+// The throughput mode gives the transactions per second, with the commits and
+// the aborts as secondary results, the sample mode the commit latency
+// percentiles (p0.50, p0.99, p0.999). The benchmark threads keep that many
+// transactions in flight, so that the coordinator fills its batches.
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(32)
+@State(Scope.Benchmark)
+public class TwoPhaseCommitBenchmark {
+  final static int CRASH_RECOVERY = 3000;   // time for a crashed coordinator to recover, ms
+  final static int RETRY_TIMEOUT = 1000;    // restart transactions nobody heard of, ms
+  final static int MAX_WAIT = 60;           // give up on a transaction, s
+
+  @Param({"3", "10", "50"})
+  public int participants;
+
+  // percentage of the transactions in which a participant votes NO
+  @Param({"0", "10", "50"})
+  public int abortRate;
+
+  // probability that the coordinator crashes before sending a decision
+  @Param({"0", "0.001"})
+  public double crashProbability;
+
+  @Param({"PRESUMED_NOTHING"})
+  public String protocol;
+
+  private ActorSystem system;
+  private ShardRouter router;
+  private ActorRef probe;
+  private final AtomicInteger nextTxnId = new AtomicInteger();
+
+  // Sent by a benchmark thread to the probe to run a transaction
+  // (a local message: the future does not leave the JVM)
+  public static class Begin {
+    public final int txnId;
+    public final ActorRef coordinator;
+    public final CompletableFuture<Decision> done;
+    public Begin(int txnId, ActorRef coordinator, CompletableFuture<Decision> done) {
+      this.txnId = txnId;
+      this.coordinator = coordinator;
+      this.done = done;
+    }
+  }
+
+  public static class Retry {}
+
+  // Stands in for the client: it starts the transactions of the benchmark
+  // threads, and it is the monitor of the participants, completing a
+  // transaction once all of them have decided (the coordinator tells the
+  // probe as well, as the client, but only the participants count). A crashed
+  // coordinator drops the transactions it receives, so those no participant
+  // voted on are started again.
+  public static class Probe extends AbstractActor {
+    private final int n;     // participants that must decide
+
+    private static class Pending {
+      Begin begin;
+      long sentAt;
+      boolean voted = false;
+      int decisions = 0;
+    }
+    private final Map<Integer, Pending> pending = new HashMap<>();
+    private Cancellable retries;
+
+    public Probe(int n) { this.n = n; }
+
+    static public Props props(int n) {
+      return Props.create(Probe.class, () -> new Probe(n));
+    }
+
+    @Override
+    public void preStart() {
+      retries = getContext().system().scheduler().scheduleWithFixedDelay(
+          Duration.create(RETRY_TIMEOUT, TimeUnit.MILLISECONDS),
+          Duration.create(RETRY_TIMEOUT, TimeUnit.MILLISECONDS),
+          getSelf(),
+          new Retry(), // message sent to myself
+          getContext().system().dispatcher(), getSelf()
+          );
+    }
+
+    @Override
+    public void postStop() {
+      retries.cancel();
+    }
+
+    @Override
+    public Receive createReceive() {
+      return receiveBuilder()
+        .match(Begin.class, this::onBegin)
+        .match(VoteResponse.class, this::onVoteResponse)
+        .match(TransactionDone.class, this::onTransactionDone)
+        .match(Retry.class, this::onRetry)
+        .build();
+    }
+
+    public void onBegin(Begin msg) {
+      Pending p = new Pending();
+      p.begin = msg;
+      p.sentAt = System.nanoTime();
+      pending.put(msg.txnId, p);
+      msg.coordinator.tell(new StartTransaction(msg.txnId), getSelf());
+    }
+
+    public void onVoteResponse(VoteResponse msg) {
+      Pending p = pending.get(msg.txnId);
+      if (p != null) p.voted = true;
+    }
+
+    public void onTransactionDone(TransactionDone msg) {
+      Pending p = pending.get(msg.txnId);
+      if (p == null || getSender().equals(p.begin.coordinator) || ++p.decisions < n) return;
+      pending.remove(msg.txnId);
+      p.begin.done.complete(msg.decision);
+    }
+
+    public void onRetry(Retry msg) {
+      long now = System.nanoTime();
+      for (Pending p: pending.values()) {
+        if (!p.voted && now - p.sentAt > TimeUnit.MILLISECONDS.toNanos(RETRY_TIMEOUT)) {
+          p.sentAt = now;
+          p.begin.coordinator.tell(new StartTransaction(p.begin.txnId), getSelf());
+        }
+      }
+    }
+  }
+
+  // outcomes of the transactions of a benchmark thread, reported per second
+  // along with the throughput
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Outcomes {
+    public long commits;
+    public long aborts;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      commits = 0;
+      aborts = 0;
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() {
+
+    // one row of votes per transaction out of 100, the last participant
+    // votes NO in abortRate of them, spread evenly
+    Vote[] votes = new Vote[100 * participants];
+    for (int row=0; row<100; row++) {
+      for (int i=0; i<participants; i++) {
+        votes[row * participants + i] = Vote.YES;
+      }
+      if ((row + 1) * abortRate / 100 > row * abortRate / 100) {
+        votes[row * participants + participants - 1] = Vote.NO;
+      }
+    }
+    TwoPhaseCommit.predefinedVotes = votes;
+    TwoPhaseCommit.verbose = false;
+
+    WriteAheadLog.clear(Paths.get(TwoPhaseCommit.LOG_DIR));
+    system = ActorSystem.create("benchmark");
+    probe = system.actorOf(Probe.props(participants), "probe");
+    router = TwoPhaseCommit.createGroup(system, Protocol.valueOf(protocol), 1, 0, participants, probe);
+    if (crashProbability > 0) {
+      for (ActorRef c: router.shards()) {
+        c.tell(new InjectCrashes(crashProbability, CRASH_RECOVERY), null);
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    system.terminate();
+    system.getWhenTerminated().toCompletableFuture().join();
+  }
+
+  @Benchmark
+  public Decision transaction(Outcomes outcomes) throws Exception {
+    int txnId = nextTxnId.getAndIncrement();
+    CompletableFuture<Decision> done = new CompletableFuture<>();
+    probe.tell(new Begin(txnId, router.shardOf(txnId), done), ActorRef.noSender());
+    Decision d = done.get(MAX_WAIT, TimeUnit.SECONDS);
+    if (d == Decision.COMMIT) outcomes.commits++;
+    else outcomes.aborts++;
+    return d;
+  }
+}
@@ -0,0 +1,68 @@
+package it.unitn.ds1;
+
+import java.util.Arrays;
+
+// A latency histogram in the style of HdrHistogram: the values below
+// SUB_BUCKETS are exact, and above them the buckets are linear within each
+// power of two, HALF of them per power, so that any value is kept with a
+// relative error below 1/HALF (1/64), from nanoseconds to hours, in a fixed array.
+// Recording is a few arithmetic operations and never allocates.
+// Not thread-safe: it is meant to be used from within the actor.
+public class LatencyRecorder {
+  private static final int SUB_BITS = 7;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;   // 128 values exact
+  private static final int HALF = SUB_BUCKETS / 2;        // buckets per power of two above
+
+  private final long[] counts = new long[SUB_BUCKETS + (64 - SUB_BITS) * HALF];
+  private long total = 0;
+  private long max = 0;
+
+  // record a duration in nanoseconds
+  public void record(long nanos) { record(nanos, 1); }
+
+  // record the same duration n times (e.g., for all the transactions of a batch)
+  public void record(long nanos, int n) {
+    if (nanos < 0) nanos = 0;
+    counts[index(nanos)] += n;
+    total += n;
+    if (nanos > max) max = nanos;
+  }
+
+  private static int index(long v) {
+    if (v < SUB_BUCKETS) return (int) v;
+
+    // keep the SUB_BITS most significant bits of the value
+    int shift = 63 - Long.numberOfLeadingZeros(v) - (SUB_BITS - 1);
+    return SUB_BUCKETS + (shift - 1) * HALF + (int) (v >>> shift) - HALF;
+  }
+
+  // the highest value that falls in a bucket
+  private static long highest(int i) {
+    if (i < SUB_BUCKETS) return i;
+    int shift = (i - SUB_BUCKETS) / HALF + 1;
+    long sub = (i - SUB_BUCKETS) % HALF + HALF;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  public long count() { return total; }
+
+  public long max() { return max; }
+
+  // the value below which the given fraction of the samples fall (e.g., 0.99)
+  public long valueAt(double fraction) {
+    if (total == 0) return 0;
+    long rank = Math.max(1, (long) Math.ceil(fraction * total));
+    long seen = 0;
+    for (int i=0; i<counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) return Math.min(highest(i), max);
+    }
+    return max;
+  }
+
+  public void reset() {
+    Arrays.fill(counts, 0);
+    total = 0;
+    max = 0;
+  }
+}
@@ -0,0 +1,128 @@
+package it.unitn.ds1;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// The latency recorders of a node, and the start times of the transactions
+// being measured. Recording allocates nothing, so it stays on all the time;
+// the node exports a snapshot of the recorders periodically, which resets them.
+// Not thread-safe: it is meant to be used from within the actor.
+public class NodeMetrics {
+  public final LatencyRecorder vote = new LatencyRecorder();      // vote request -> vote sent
+  public final LatencyRecorder decision = new LatencyRecorder();  // waiting for the decision
+  public final LatencyRecorder inDoubt = new LatencyRecorder();   // first timeout -> decision
+  public final LatencyRecorder recovery = new LatencyRecorder();  // log replay after a crash
+  public long timeouts = 0;                                       // timers fired
+
+  // start times of the transactions waiting for a decision, and of
+  // those that timed out waiting
+  private final Stamps waiting = new Stamps();
+  private final Stamps blocked = new Stamps();
+
+  private BufferedWriter out = null;
+
+  // Start times keyed by transaction ID, in a fixed open table: a
+  // transaction overwrites an older one in the same slot, whose sample
+  // is lost. With fewer transactions in flight than slots, that is rare.
+  private static class Stamps {
+    private static final int SLOTS = 4096;
+    private final int[] keys = new int[SLOTS];
+    private final long[] times = new long[SLOTS];
+
+    Stamps() { Arrays.fill(keys, -1); }
+
+    void start(int txnId, long now) {
+      int s = txnId & (SLOTS - 1);
+      keys[s] = txnId;
+      times[s] = now;
+    }
+
+    boolean contains(int txnId) {
+      return keys[txnId & (SLOTS - 1)] == txnId;
+    }
+
+    // time since the start of a transaction, removing it; -1 if unknown
+    long stop(int txnId, long now) {
+      int s = txnId & (SLOTS - 1);
+      if (keys[s] != txnId) return -1;
+      keys[s] = -1;
+      return now - times[s];
+    }
+  }
+
+  // the node starts waiting for the decision of a transaction
+  public void waiting(int txnId) {
+    waiting.start(txnId, System.nanoTime());
+  }
+
+  // a timeout fired while waiting for the decision: in doubt from now on
+  public void blocked(int txnId) {
+    if (!blocked.contains(txnId)) blocked.start(txnId, System.nanoTime());
+  }
+
+  public void decided(int txnId) {
+    long now = System.nanoTime();
+    long d = waiting.stop(txnId, now);
+    if (d >= 0) decision.record(d);
+    d = blocked.stop(txnId, now);
+    if (d >= 0) inDoubt.record(d);
+  }
+
+  // start writing the snapshots to a file, replacing any previous one
+  public void open(Path dir, String name) {
+    try {
+      Files.createDirectories(dir);
+      out = Files.newBufferedWriter(dir.resolve(name + ".metrics"));
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  // write the recorders since the last snapshot, then reset them
+  public void snapshot() {
+    if (out == null) return;
+    long ts = System.currentTimeMillis();
+    try {
+      write(ts, "vote", vote);
+      write(ts, "decision", decision);
+      write(ts, "in-doubt", inDoubt);
+      write(ts, "recovery", recovery);
+      out.write(ts + " timeouts " + timeouts + "\n");
+      out.flush();
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+    }
+    vote.reset();
+    decision.reset();
+    inDoubt.reset();
+    recovery.reset();
+    timeouts = 0;
+  }
+
+  // one line per recorder, latencies in microseconds
+  private void write(long ts, String name, LatencyRecorder r) throws IOException {
+    out.write(String.format("%d %s count=%d p50=%d p99=%d p999=%d max=%d\n",
+        ts, name, r.count(), us(r.valueAt(0.5)), us(r.valueAt(0.99)),
+        us(r.valueAt(0.999)), us(r.max())));
+  }
+
+  private static long us(long nanos) { return TimeUnit.NANOSECONDS.toMicros(nanos); }
+
+  public void close() {
+    if (out == null) return;
+    snapshot();
+    try {
+      out.close();
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+    }
+    out = null;
+  }
+}
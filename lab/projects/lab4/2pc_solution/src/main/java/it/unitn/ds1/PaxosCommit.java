@@ -0,0 +1,571 @@
+package it.unitn.ds1;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+
+import it.unitn.ds1.TwoPhaseCommit.Node;
+import it.unitn.ds1.TwoPhaseCommit.StartMessage;
+import it.unitn.ds1.TwoPhaseCommit.StartTransaction;
+import it.unitn.ds1.TwoPhaseCommit.TransactionDone;
+import it.unitn.ds1.TwoPhaseCommit.Vote;
+import it.unitn.ds1.TwoPhaseCommit.Decision;
+import it.unitn.ds1.TwoPhaseCommit.Protocol;
+import it.unitn.ds1.TwoPhaseCommit.VoteRequest;
+import it.unitn.ds1.TwoPhaseCommit.VoteResponse;
+import it.unitn.ds1.TwoPhaseCommit.DecisionResponse;
+import it.unitn.ds1.TwoPhaseCommit.InjectCrashes;
+import it.unitn.ds1.TwoPhaseCommit.Tick;
+import it.unitn.ds1.TwoPhaseCommit.Recovery;
+import it.unitn.ds1.TwoPhaseCommit.MetricsSnapshot;
+
+import java.io.Serializable;
+import java.util.concurrent.CountDownLatch;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import java.nio.file.Paths;
+
+// Paxos Commit (Gray and Lamport): the vote of each participant is chosen by
+// its own Paxos instance, run by 2F+1 acceptors. In the fault-free case a
+// participant sends its vote to the acceptors with ballot 0, reserved to it,
+// and the acceptors forward it to the coordinator, which acts as the leader:
+// one message delay more than 2PC. The coordinator logs nothing before the
+// votes, they are safe with the acceptors, and only appends its decisions;
+// when the coordinator fails, any participant
+// that times out leads a higher ballot, proposing ABORT for the votes that
+// were not chosen, so nobody blocks as long as F+1 acceptors are up.
+public class PaxosCommit {
+  final static int N_PARTICIPANTS = TwoPhaseCommit.N_PARTICIPANTS;
+  final static int F = 1;                      // acceptor failures tolerated
+  final static int N_ACCEPTORS = 2 * F + 1;
+  final static int ACCEPTOR_ID = 100;          // ID of the first acceptor
+  final static int VOTE_TIMEOUT = 500;         // timeout for the votes to be chosen, ms
+  final static int DECISION_TIMEOUT = 500;     // timeout for the decision, ms
+
+  // comparison with 2PC
+  final static int BENCH_TRANSACTIONS = 2000;  // transactions per protocol
+  final static int BENCH_WINDOW = 64;          // transactions in flight at once
+  final static int CRASH_RECOVERY = 3000;      // time for the coordinator to recover, ms
+
+  // phase 1a: a leader asks the acceptors to promise not to accept lower ballots
+  public static class Prepare implements Serializable {
+    public final int txnId;
+    public final int ballot;
+    public Prepare(int txnId, int ballot) { this.txnId = txnId; this.ballot = ballot; }
+  }
+
+  // phase 1b: the promise, with what the acceptor accepted for each participant
+  // (the ballot, -1 if none, and the vote)
+  public static class Promise implements Serializable {
+    public final int txnId;
+    public final int ballot;
+    public final int[] accepted;
+    public final Vote[] votes;
+    public Promise(int txnId, int ballot, int[] accepted, Vote[] votes) {
+      this.txnId = txnId;
+      this.ballot = ballot;
+      this.accepted = accepted;
+      this.votes = votes;
+    }
+  }
+
+  // phase 1b, refused: the acceptor promised the given ballot, not lower than
+  // the one asked for, so the leader must pick a higher one
+  public static class Nack implements Serializable {
+    public final int txnId;
+    public final int ballot;
+    public final int promised;
+    public Nack(int txnId, int ballot, int promised) {
+      this.txnId = txnId;
+      this.ballot = ballot;
+      this.promised = promised;
+    }
+  }
+
+  // phase 2a: the vote proposed for a participant in a ballot
+  public static class Accept implements Serializable {
+    public final int txnId;
+    public final int rm;        // the participant whose vote this is
+    public final int ballot;
+    public final Vote vote;
+    public Accept(int txnId, int rm, int ballot, Vote vote) {
+      this.txnId = txnId;
+      this.rm = rm;
+      this.ballot = ballot;
+      this.vote = vote;
+    }
+  }
+
+  // phase 2b: an acceptor accepted the vote
+  public static class Accepted implements Serializable {
+    public final int txnId;
+    public final int rm;
+    public final int ballot;
+    public final Vote vote;
+    public Accepted(int txnId, int rm, int ballot, Vote vote) {
+      this.txnId = txnId;
+      this.rm = rm;
+      this.ballot = ballot;
+      this.vote = vote;
+    }
+  }
+
+  /*-- Common functionality of the leaders: coordinator and participants -----*/
+
+  public abstract static class Leader extends Node {
+    protected final List<ActorRef> acceptors;
+
+    // a ballot led by this node for all the votes of a transaction
+    private static class Ballot {
+      final int number;
+      int promises = 0;                                // phase 1b received
+      final int[] accepted = new int[N_PARTICIPANTS];  // highest ballot in the promises
+      final Vote[] votes = new Vote[N_PARTICIPANTS];   // votes proposed, then chosen
+      final int[] acks = new int[N_PARTICIPANTS];      // phase 2b received per vote
+      int chosen = 0;                                  // votes chosen so far
+      Ballot(int number) {
+        this.number = number;
+        Arrays.fill(accepted, -1);
+      }
+    }
+
+    // the ballot we are leading for each transaction, and the rounds we tried
+    private final Map<Integer, Ballot> ballots = new HashMap<>();
+    private final Map<Integer, Integer> rounds = new HashMap<>();
+
+    public Leader(int id, List<ActorRef> acceptors) {
+      super(id, Protocol.PRESUMED_NOTHING);
+      this.acceptors = Collections.unmodifiableList(new ArrayList<>(acceptors));
+    }
+
+    // learn the votes sent by the participants with ballot 0
+    void follow(int txnId) {
+      ballots.put(txnId, new Ballot(0));
+    }
+
+    // lead a new ballot for a transaction: ballots are unique to each node,
+    // the coordinator (ID -1) and the participants take turns
+    void lead(int txnId) {
+      int round = rounds.merge(txnId, 1, Integer::sum);
+      Ballot b = new Ballot(round * (N_PARTICIPANTS + 1) + id + 1);
+      ballots.put(txnId, b);
+      if (TwoPhaseCommit.verbose) print("txn " + txnId + " leading ballot " + b.number);
+      for (ActorRef a: acceptors) a.tell(new Prepare(txnId, b.number), getSelf());
+      setTimeout(DECISION_TIMEOUT, txnId);
+    }
+
+    public void onPromise(Promise msg) {
+      Ballot b = ballots.get(msg.txnId);
+      if (b == null || b.number != msg.ballot || b.promises > F) return;
+      for (int rm=0; rm<N_PARTICIPANTS; rm++) {
+        if (msg.accepted[rm] > b.accepted[rm]) {
+          b.accepted[rm] = msg.accepted[rm];
+          b.votes[rm] = msg.votes[rm];
+        }
+      }
+      if (++b.promises == F + 1) {
+
+        // a vote that may not have been chosen yet can be anything: we choose NO
+        for (int rm=0; rm<N_PARTICIPANTS; rm++) {
+          Vote v = b.votes[rm] != null ? b.votes[rm] : Vote.NO;
+          for (ActorRef a: acceptors) a.tell(new Accept(msg.txnId, rm, b.number, v), getSelf());
+        }
+      }
+    }
+
+    // the rounds are in memory, and a leader that recovers starts again from
+    // round 1: a refusal tells it which rounds others used, and the next
+    // ballot it leads (at the next timeout) is higher
+    public void onNack(Nack msg) {
+      Ballot b = ballots.get(msg.txnId);
+      if (b == null || b.number != msg.ballot) return;
+      rounds.merge(msg.txnId, msg.promised / (N_PARTICIPANTS + 1), Math::max);
+    }
+
+    public void onAccepted(Accepted msg) {
+      Ballot b = ballots.get(msg.txnId);
+      if (b == null || b.number != msg.ballot) return;
+
+      // a vote is chosen once a majority of the acceptors accepted it
+      if (++b.acks[msg.rm] == F + 1) {
+        b.votes[msg.rm] = msg.vote;
+        if (++b.chosen == N_PARTICIPANTS) {
+          boolean commit = true;
+          for (Vote v: b.votes) commit &= v != Vote.NO;
+          chosen(msg.txnId, commit ? Decision.COMMIT : Decision.ABORT);
+        }
+      }
+    }
+
+    // all the votes are chosen: the decision follows, and everybody must know it;
+    // no need to force the decision, the acceptors can tell it again
+    void chosen(int txnId, Decision d) {
+      decided(txnId, d);
+      DecisionResponse m = new DecisionResponse(txnId, d);
+      multicast(m);
+      for (ActorRef a: acceptors) a.tell(m, getSelf());
+    }
+
+    // someone else found the decision
+    public void onDecisionResponse(DecisionResponse msg) {
+      if (!hasDecided(msg.txnId)) {
+        decided(msg.txnId, msg.decision);
+      }
+    }
+
+    void decided(int txnId, Decision d) {
+      fixDecision(txnId, d);
+      ballots.remove(txnId);
+      rounds.remove(txnId);
+      cancelTimeout(txnId);
+    }
+
+    // the ballots were in memory; the acceptors never promise the same ballot
+    // twice, so we cannot lead again a ballot we led before the crash
+    void forgetBallots() {
+      ballots.clear();
+      rounds.clear();
+    }
+  }
+
+  /*-- Coordinator -----------------------------------------------------------*/
+
+  public static class Coordinator extends Leader {
+
+    // who started each transaction in flight
+    private final Map<Integer, ActorRef> clients = new HashMap<>();
+
+    public Coordinator(List<ActorRef> acceptors) {
+      super(-1, acceptors); // the coordinator has the id -1
+    }
+
+    static public Props props(List<ActorRef> acceptors) {
+      return Props.create(Coordinator.class, () -> new Coordinator(acceptors));
+    }
+
+    @Override
+    public Receive createReceive() {
+      return receiveBuilder()
+        .match(Recovery.class, this::onRecovery)
+        .match(StartMessage.class, this::setGroup)
+        .match(StartTransaction.class, this::onStartTransaction)
+        .match(InjectCrashes.class, this::onInjectCrashes)
+        .match(Promise.class, this::onPromise)
+        .match(Nack.class, this::onNack)
+        .match(Accepted.class, this::onAccepted)
+        .match(DecisionResponse.class, this::onDecisionResponse)
+        .match(Tick.class, this::onTick)
+        .match(MetricsSnapshot.class, this::onMetricsSnapshot)
+        .build();
+    }
+
+    public void onStartTransaction(StartTransaction msg) {
+      if (clients.containsKey(msg.txnId) || hasDecided(msg.txnId)) return; // a retry
+      clients.put(msg.txnId, getSender());
+
+      // nothing to log: the votes go to the acceptors
+      follow(msg.txnId);
+      if (TwoPhaseCommit.verbose) print("txn " + msg.txnId + " sending vote request");
+      multicast(new VoteRequest(msg.txnId));
+      setTimeout(VOTE_TIMEOUT, msg.txnId);
+    }
+
+    @Override
+    void chosen(int txnId, Decision d) {
+
+      // the votes are chosen, a crash here does not block anybody
+      if (injectCrash()) return;
+      //if (id==-1) {crash(3000); return;}
+      super.chosen(txnId, d);
+    }
+
+    @Override
+    void decided(int txnId, Decision d) {
+      super.decided(txnId, d);
+      ActorRef client = clients.remove(txnId);
+      if (client != null) {
+        client.tell(new TransactionDone(txnId, d), getSelf());
+      }
+    }
+
+    @Override
+    public void onTimeout(int txnId) {
+      if (!clients.containsKey(txnId) || hasDecided(txnId)) return;
+      if (TwoPhaseCommit.verbose) print("txn " + txnId + " timeout");
+
+      // some votes were not chosen in time: a new ballot aborts unless they show up
+      lead(txnId);
+    }
+
+    @Override
+    public void onRecovery(Recovery msg) {
+      getContext().become(createReceive());
+
+      // nothing to rebuild: the votes are with the acceptors, and
+      // the participants finish the transactions that were in flight
+      clients.clear();
+      forgetBallots();
+    }
+  }
+
+  /*-- Participant -----------------------------------------------------------*/
+
+  public static class Participant extends Leader {
+    ActorRef coordinator;
+
+    // transactions for which we voted YES but do not know the decision yet
+    private final Set<Integer> inDoubt = new HashSet<>();
+
+    public Participant(int id, List<ActorRef> acceptors) { super(id, acceptors); }
+
+    static public Props props(int id, List<ActorRef> acceptors) {
+      return Props.create(Participant.class, () -> new Participant(id, acceptors));
+    }
+
+    @Override
+    public Receive createReceive() {
+      return receiveBuilder()
+        .match(StartMessage.class, this::onStartMessage)
+        .match(VoteRequest.class, this::onVoteRequest)
+        .match(Promise.class, this::onPromise)
+        .match(Nack.class, this::onNack)
+        .match(Accepted.class, this::onAccepted)
+        .match(DecisionResponse.class, this::onDecisionResponse)
+        .match(Tick.class, this::onTick)
+        .match(MetricsSnapshot.class, this::onMetricsSnapshot)
+        .match(Recovery.class, this::onRecovery)
+        .build();
+    }
+
+    public void onStartMessage(StartMessage msg) {
+
+      // the start message is sent on behalf of the coordinator
+      this.coordinator = getSender();
+      this.monitor = msg.monitor;
+      setGroup(msg);
+    }
+
+    public void onVoteRequest(VoteRequest msg) {
+      //if (id==2) {crash(5000); return;}    // simulate a crash
+      Vote v = TwoPhaseCommit.predefinedVote(this.id, N_PARTICIPANTS, msg.txnId);
+
+      // no read-only optimization here: a READ_ONLY vote counts as YES;
+      // a leader may have aborted already, if the vote request was late
+      if (v == Vote.NO || hasDecided(msg.txnId)) {
+        fixDecision(msg.txnId, Decision.ABORT);
+        v = Vote.NO;
+      }
+      else {
+        log.append(WriteAheadLog.PREPARE, msg.txnId, (byte) Vote.YES.ordinal(), true);
+        inDoubt.add(msg.txnId);
+        setTimeout(DECISION_TIMEOUT, msg.txnId);
+        v = Vote.YES;
+      }
+      log.sync();
+
+      // ballot 0 is ours: no need for phase 1
+      if (TwoPhaseCommit.verbose) print("txn " + msg.txnId + " sending vote " + v);
+      for (ActorRef a: acceptors) a.tell(new Accept(msg.txnId, id, 0, v), getSelf());
+      if (monitor != null) monitor.tell(new VoteResponse(msg.txnId, v), getSelf());
+    }
+
+    @Override
+    void chosen(int txnId, Decision d) {
+      super.chosen(txnId, d);
+      coordinator.tell(new DecisionResponse(txnId, d), getSelf());
+    }
+
+    @Override
+    void decided(int txnId, Decision d) {
+      super.decided(txnId, d);
+      inDoubt.remove(txnId);
+    }
+
+    @Override
+    public void onTimeout(int txnId) {
+      if (!hasDecided(txnId)) {
+        if (TwoPhaseCommit.verbose) print("txn " + txnId + " timeout");
+        lead(txnId);
+      }
+    }
+
+    @Override
+    public void onRecovery(Recovery msg) {
+      getContext().become(createReceive());
+      inDoubt.clear();
+      forgetBallots();
+      replayLog();
+
+      // find out the decisions from the acceptors
+      for (int txnId: new ArrayList<>(inDoubt)) {
+        if (TwoPhaseCommit.verbose) print("txn " + txnId + " recovery");
+        lead(txnId);
+      }
+    }
+
+    @Override
+    void onLogRecord(byte type, int txnId, byte value) {
+      super.onLogRecord(type, txnId, value);
+      if (type == WriteAheadLog.PREPARE) {
+        inDoubt.add(txnId);
+      }
+      else if (type == WriteAheadLog.DECISION) {
+        inDoubt.remove(txnId);
+      }
+    }
+  }
+
+  /*-- Acceptor --------------------------------------------------------------*/
+
+  // acceptors keep their state in memory, so an acceptor that crashes does not
+  // come back: it is one of the F failures that Paxos Commit tolerates
+  public static class Acceptor extends Node {
+    ActorRef coordinator;
+
+    // the instances of a transaction, one for the vote of each participant
+    private static class Instances {
+      int promised = 0;                                 // no lower ballot accepted
+      final int[] accepted = new int[N_PARTICIPANTS];   // ballot of the accepted vote
+      final Vote[] votes = new Vote[N_PARTICIPANTS];
+      Instances() { Arrays.fill(accepted, -1); }
+    }
+
+    // transactions not decided yet
+    private final Map<Integer, Instances> instances = new HashMap<>();
+
+    public Acceptor(int id) { super(id, Protocol.PRESUMED_NOTHING); }
+
+    static public Props props(int id) {
+      return Props.create(Acceptor.class, () -> new Acceptor(id));
+    }
+
+    @Override
+    public Receive createReceive() {
+      return receiveBuilder()
+        .match(StartMessage.class, this::onStartMessage)
+        .match(Prepare.class, this::onPrepare)
+        .match(Accept.class, this::onAccept)
+        .match(DecisionResponse.class, this::onDecisionResponse)
+        .match(Recovery.class, this::onRecovery)
+        .match(MetricsSnapshot.class, this::onMetricsSnapshot)
+        .build();
+    }
+
+    public void onStartMessage(StartMessage msg) {
+
+      // the start message is sent on behalf of the coordinator
+      this.coordinator = getSender();
+      setGroup(msg);
+    }
+
+    public void onPrepare(Prepare msg) {
+      if (hasDecided(msg.txnId)) {
+        getSender().tell(new DecisionResponse(msg.txnId, decisionOf(msg.txnId)), getSelf());
+        return;
+      }
+      Instances s = instances.computeIfAbsent(msg.txnId, k -> new Instances());
+
+      // a ballot is promised once: a leader that asks again for the same one
+      // has crashed and forgot it, and might propose something else in it
+      if (msg.ballot <= s.promised) {
+        getSender().tell(new Nack(msg.txnId, msg.ballot, s.promised), getSelf());
+        return;
+      }
+      s.promised = msg.ballot;
+      getSender().tell(new Promise(msg.txnId, msg.ballot, s.accepted.clone(), s.votes.clone()),
+          getSelf());
+    }
+
+    public void onAccept(Accept msg) {
+      if (hasDecided(msg.txnId)) {
+        getSender().tell(new DecisionResponse(msg.txnId, decisionOf(msg.txnId)), getSelf());
+        return;
+      }
+      Instances s = instances.computeIfAbsent(msg.txnId, k -> new Instances());
+      if (msg.ballot < s.promised) return;
+      s.promised = msg.ballot;
+      s.accepted[msg.rm] = msg.ballot;
+      s.votes[msg.rm] = msg.vote;
+
+      // votes sent by the participants themselves go to the coordinator
+      ActorRef leader = msg.ballot == 0 ? coordinator : getSender();
+      leader.tell(new Accepted(msg.txnId, msg.rm, msg.ballot, msg.vote), getSelf());
+    }
+
+    // once decided, the decision answers for all the instances
+    public void onDecisionResponse(DecisionResponse msg) {
+      fixDecision(msg.txnId, msg.decision);
+      instances.remove(msg.txnId);
+    }
+
+    @Override
+    public void onTimeout(int txnId) {}
+
+    @Override
+    public void onRecovery(Recovery msg) {
+      print("promises lost, not recovering");
+    }
+  }
+
+  /*-- Main ------------------------------------------------------------------*/
+
+  // run the same load with 2PC and Paxos Commit, optionally crashing the
+  // coordinator with the probability passed as argument (e.g., 0.005)
+  public static void main(String[] args) {
+    double crashProbability = args.length > 0 ? Double.parseDouble(args[0]) : 0;
+    for (String name: new String[] {"2PC", "Paxos Commit"}) {
+      WriteAheadLog.clear(Paths.get(TwoPhaseCommit.LOG_DIR));
+      final ActorSystem system = ActorSystem.create("helloakka");
+      boolean paxos = !name.equals("2PC");
+
+      List<ActorRef> acceptors = new ArrayList<>();
+      if (paxos) {
+        for (int i=0; i<N_ACCEPTORS; i++) {
+          acceptors.add(system.actorOf(Acceptor.props(ACCEPTOR_ID + i), "acceptor" + i));
+        }
+      }
+      ActorRef coordinator = system.actorOf(paxos ? Coordinator.props(acceptors)
+          : TwoPhaseCommit.Coordinator.props(Protocol.PRESUMED_NOTHING), "coordinator");
+      List<ActorRef> group = new ArrayList<>();
+      for (int i=0; i<N_PARTICIPANTS; i++) {
+        group.add(system.actorOf(paxos ? Participant.props(i, acceptors)
+            : TwoPhaseCommit.Participant.props(i, Protocol.PRESUMED_NOTHING), "participant" + i));
+      }
+      CountDownLatch finished = new CountDownLatch(1);
+      ActorRef client = system.actorOf(ThreePhaseCommit.BenchClient.props(name, coordinator,
+          BENCH_TRANSACTIONS, BENCH_WINDOW, finished), "client");
+
+      if (crashProbability > 0) {
+        coordinator.tell(new InjectCrashes(crashProbability, CRASH_RECOVERY), null);
+      }
+
+      // Send start messages to everyone on behalf of the coordinator,
+      // the client tells the participants about the decisions
+      StartMessage start = new StartMessage(group, client);
+      for (ActorRef peer: group) {
+        peer.tell(start, coordinator);
+      }
+      for (ActorRef a: acceptors) {
+        a.tell(start, coordinator);
+      }
+      coordinator.tell(start, null);
+      client.tell(start, null);
+
+      try {
+        finished.await();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      system.terminate();
+      system.getWhenTerminated().toCompletableFuture().join();
+    }
+  }
+}
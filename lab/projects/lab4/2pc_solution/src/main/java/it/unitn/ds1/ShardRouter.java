@@ -0,0 +1,44 @@
+package it.unitn.ds1;
+
+import akka.actor.ActorRef;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Maps each transaction to the coordinator shard in charge of it, by hashing
+// the transaction ID. It is immutable, so the participants and the clients
+// share a single instance and route locally, without going through a router
+// actor that would become the next bottleneck.
+public final class ShardRouter implements Serializable {
+  private final List<ActorRef> shards;
+
+  public ShardRouter(List<ActorRef> shards) {
+    if (shards.isEmpty()) {
+      throw new IllegalArgumentException("at least one shard is needed");
+    }
+    this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+  }
+
+  // a single coordinator in charge of everything
+  public static ShardRouter of(ActorRef coordinator) {
+    return new ShardRouter(Collections.singletonList(coordinator));
+  }
+
+  // the position of the shard of a transaction; the ID is mixed first,
+  // so that any pattern in the IDs spreads evenly over the shards
+  public int shardIndex(int txnId) {
+    int h = txnId * 0x9E3779B9;
+    h ^= h >>> 16;
+    return Math.floorMod(h, shards.size());
+  }
+
+  public ActorRef shardOf(int txnId) {
+    return shards.get(shardIndex(txnId));
+  }
+
+  public List<ActorRef> shards() { return shards; }
+
+  public int size() { return shards.size(); }
+}
@@ -0,0 +1,761 @@
+package it.unitn.ds1;
+
+import akka.actor.ActorRef;
+import akka.actor.AbstractActor;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import scala.concurrent.duration.Duration;
+
+import it.unitn.ds1.TwoPhaseCommit.Node;
+import it.unitn.ds1.TwoPhaseCommit.StartMessage;
+import it.unitn.ds1.TwoPhaseCommit.StartTransaction;
+import it.unitn.ds1.TwoPhaseCommit.TransactionDone;
+import it.unitn.ds1.TwoPhaseCommit.Vote;
+import it.unitn.ds1.TwoPhaseCommit.Decision;
+import it.unitn.ds1.TwoPhaseCommit.Protocol;
+import it.unitn.ds1.TwoPhaseCommit.VoteRequest;
+import it.unitn.ds1.TwoPhaseCommit.VoteResponse;
+import it.unitn.ds1.TwoPhaseCommit.DecisionRequest;
+import it.unitn.ds1.TwoPhaseCommit.DecisionResponse;
+import it.unitn.ds1.TwoPhaseCommit.InjectCrashes;
+import it.unitn.ds1.TwoPhaseCommit.Tick;
+import it.unitn.ds1.TwoPhaseCommit.Recovery;
+import it.unitn.ds1.TwoPhaseCommit.MetricsSnapshot;
+
+import java.io.Serializable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.BitSet;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+// Three-phase commit: between the votes and the decision the coordinator
+// makes every participant PRECOMMITTED, so that no participant can commit
+// while another one is still uncertain. If the coordinator crashes, the
+// participants do not wait for it: they elect a backup coordinator among
+// themselves, which collects their states and terminates the transaction.
+// Like 3PC itself, this assumes that crashed nodes are detected by timeouts,
+// i.e., that the timeouts are longer than any message delay.
+public class ThreePhaseCommit {
+  final static int N_PARTICIPANTS = TwoPhaseCommit.N_PARTICIPANTS;
+  final static int N_TRANSACTIONS = 10;        // transactions started by main
+  final static int VOTE_TIMEOUT = 500;         // timeout for the votes and pre-commit acks, ms
+  final static int DECISION_TIMEOUT = 500;     // timeout for the next step of the coordinator, ms
+  final static int TERMINATION_TIMEOUT = 200;  // timeout for the states and acks of a backup, ms
+
+  // benchmark parameters
+  final static int BENCH_TRANSACTIONS = 500;   // transactions per engine
+  final static int BENCH_WINDOW = 8;           // transactions in flight at once
+  final static double CRASH_PROBABILITY = 0.01; // coordinator crash before sending decisions
+  final static int CRASH_RECOVERY = 3000;      // time for the coordinator to recover, ms
+  final static int RETRY_TIMEOUT = 1000;       // client: restart transactions nobody heard of, ms
+
+  // what a participant knows about a transaction
+  public enum State {UNKNOWN, UNCERTAIN, PRECOMMITTED, ABORTED, COMMITTED}
+
+  // sent by the coordinator (or a backup) once everybody voted YES
+  public static class PreCommit implements Serializable {
+    public final int txnId;
+    public PreCommit(int txnId) { this.txnId = txnId; }
+  }
+
+  public static class PreCommitAck implements Serializable {
+    public final int txnId;
+    public PreCommitAck(int txnId) { this.txnId = txnId; }
+  }
+
+  // sent by a participant that gave up on the coordinator to the backup of a round
+  public static class TerminationRequest implements Serializable {
+    public final int txnId;
+    public final int round;
+    public TerminationRequest(int txnId, int round) { this.txnId = txnId; this.round = round; }
+  }
+
+  // sent by a backup coordinator to collect the states of the participants
+  public static class StateRequest implements Serializable {
+    public final int txnId;
+    public final int round;
+    public StateRequest(int txnId, int round) { this.txnId = txnId; this.round = round; }
+  }
+
+  public static class StateReport implements Serializable {
+    public final int txnId;
+    public final int round;
+    public final State state;
+    public StateReport(int txnId, int round, State state) {
+      this.txnId = txnId;
+      this.round = round;
+      this.state = state;
+    }
+  }
+
+  // sent periodically by the benchmark client to itself
+  public static class Retry implements Serializable {}
+
+  /*-- Coordinator -----------------------------------------------------------*/
+
+  public static class Coordinator extends Node {
+
+    // state of a transaction that is still in flight
+    private static class Transaction {
+      final ActorRef client;                  // who started the transaction
+      final BitSet yesVoters = new BitSet();  // participants that voted YES
+      final BitSet acks = new BitSet();       // participants that are PRECOMMITTED
+      boolean precommitting = false;          // votes collected, waiting for the acks
+      boolean recovering = false;             // asking the participants after a crash
+      Transaction(ActorRef client) { this.client = client; }
+    }
+
+    private final Map<Integer, Transaction> transactions = new HashMap<>();
+
+    // position of each participant in the group
+    private final Map<ActorRef, Integer> index = new HashMap<>();
+
+    public Coordinator() {
+      super(-1, Protocol.PRESUMED_NOTHING); // the coordinator has the id -1
+    }
+
+    static public Props props() {
+      return Props.create(Coordinator.class, Coordinator::new);
+    }
+
+    @Override
+    public Receive createReceive() {
+      return receiveBuilder()
+        .match(Recovery.class, this::onRecovery)
+        .match(StartMessage.class, this::onStartMessage)
+        .match(StartTransaction.class, this::onStartTransaction)
+        .match(InjectCrashes.class, this::onInjectCrashes)
+        .match(VoteResponse.class, this::onVoteResponse)
+        .match(PreCommitAck.class, this::onPreCommitAck)
+        .match(DecisionResponse.class, this::onDecisionResponse)
+        .match(Tick.class, this::onTick)
+        .match(MetricsSnapshot.class, this::onMetricsSnapshot)
+        .match(DecisionRequest.class, this::onDecisionRequest)
+        .build();
+    }
+
+    public void onStartMessage(StartMessage msg) {                   /* Start */
+      setGroup(msg);
+      for (int i=0; i<participants.size(); i++) {
+        index.put(participants.get(i), i);
+      }
+    }
+
+    public void onStartTransaction(StartTransaction msg) {
+      if (transactions.containsKey(msg.txnId) || hasDecided(msg.txnId)) return; // a retry
+      transactions.put(msg.txnId, new Transaction(getSender()));
+      log.append(WriteAheadLog.BEGIN, msg.txnId, (byte) 0, true);
+      log.sync();
+      if (TwoPhaseCommit.verbose) print("txn " + msg.txnId + " sending vote request");
+      multicast(new VoteRequest(msg.txnId));
+      setTimeout(VOTE_TIMEOUT, msg.txnId);
+    }
+
+    public void onVoteResponse(VoteResponse msg) {                    /* Vote */
+      Transaction t = transactions.get(msg.txnId);
+      if (t == null || t.precommitting || t.recovering) return;
+      if (msg.vote == Vote.NO) {
+
+        // on a single NO we decide ABORT
+        decide(msg.txnId, Decision.ABORT);
+        return;
+      }
+
+      // no read-only optimization here: a READ_ONLY vote counts as YES
+      t.yesVoters.set(index.get(getSender()));
+      if (t.yesVoters.cardinality() == N_PARTICIPANTS) {
+        t.precommitting = true;
+        if (TwoPhaseCommit.verbose) print("txn " + msg.txnId + " sending pre-commit");
+        multicast(new PreCommit(msg.txnId));
+        //multicastAndCrash(new PreCommit(msg.txnId), 3000);
+        setTimeout(VOTE_TIMEOUT, msg.txnId);
+      }
+    }
+
+    public void onPreCommitAck(PreCommitAck msg) {
+      Transaction t = transactions.get(msg.txnId);
+      if (t == null || !t.precommitting || t.recovering) return;
+      t.acks.set(index.get(getSender()));
+      if (t.acks.cardinality() == N_PARTICIPANTS) {
+
+        // everybody is PRECOMMITTED: a crash here leaves it to a backup
+        if (injectCrash()) return;
+        //if (id==-1) {crash(3000); return;}
+        decide(msg.txnId, Decision.COMMIT);
+      }
+    }
+
+    // a backup terminated the transaction, or a participant answered after our recovery
+    public void onDecisionResponse(DecisionResponse msg) {
+      if (transactions.containsKey(msg.txnId)) {
+        fixDecision(msg.txnId, msg.decision);
+        log.sync();
+        done(msg.txnId, msg.decision);
+      }
+    }
+
+    @Override
+    public void onTimeout(int txnId) {
+      Transaction t = transactions.get(txnId);
+      if (t == null) return;
+      if (t.recovering) {
+
+        // the participants are still terminating the transaction, ask again
+        multicast(new DecisionRequest(txnId));
+        setTimeout(DECISION_TIMEOUT, txnId);
+      }
+      else if (!t.precommitting) {
+        if (TwoPhaseCommit.verbose) print("txn " + txnId + " timeout");
+
+        // not all the votes arrived in time: nobody can be PRECOMMITTED
+        decide(txnId, Decision.ABORT);
+      }
+      else {
+        if (TwoPhaseCommit.verbose) print("txn " + txnId + " timeout on pre-commit acks");
+
+        // everybody voted YES: the participants that did not ack crashed,
+        // and they will learn the decision when they recover
+        decide(txnId, Decision.COMMIT);
+      }
+    }
+
+    // fix the decision and send it to the group; no acks needed, a participant
+    // that misses it runs the termination protocol
+    void decide(int txnId, Decision d) {
+      fixDecision(txnId, d);
+      log.sync();
+      multicast(new DecisionResponse(txnId, d));
+      done(txnId, d);
+    }
+
+    private void done(int txnId, Decision d) {
+      Transaction t = transactions.remove(txnId);
+      cancelTimeout(txnId);
+      if (t.client != null) {
+        t.client.tell(new TransactionDone(txnId, d), getSelf());
+      }
+    }
+
+    @Override
+    public void onRecovery(Recovery msg) {
+      getContext().become(createReceive());
+
+      // find the transactions that were still in flight
+      transactions.clear();
+      replayLog();
+      for (int txnId: new ArrayList<>(transactions.keySet())) {
+
+        // unlike 2PC, we cannot abort on our own: a backup may have committed
+        // in the meantime, so we ask the participants about the outcome
+        if (TwoPhaseCommit.verbose) print("txn " + txnId + " recovering, asking the participants");
+        transactions.get(txnId).recovering = true;
+        multicast(new DecisionRequest(txnId));
+        setTimeout(DECISION_TIMEOUT, txnId);
+      }
+    }
+
+    @Override
+    void onLogRecord(byte type, int txnId, byte value) {
+      super.onLogRecord(type, txnId, value);
+      if (type == WriteAheadLog.BEGIN) {
+        transactions.put(txnId, new Transaction(null));
+      }
+      else if (type == WriteAheadLog.DECISION) {
+        transactions.remove(txnId);
+      }
+    }
+  }
+
+  /*-- Participant -----------------------------------------------------------*/
+
+  public static class Participant extends Node {
+    ActorRef coordinator;
+    List<ActorRef> group;   // all the participants in ID order, to elect the backups
+
+    // transactions we voted YES for, UNCERTAIN or PRECOMMITTED, while not decided
+    private final Map<Integer, State> inDoubt = new HashMap<>();
+
+    // highest termination round we know of, for each transaction not decided yet
+    private final Map<Integer, Integer> rounds = new HashMap<>();
+
+    // a termination run by this participant as the backup coordinator
+    private static class Termination {
+      final int round;
+      final Map<ActorRef, State> states = new HashMap<>(); // collected so far
+      final List<ActorRef> uncertain = new ArrayList<>();  // PRECOMMIT not acked yet
+      boolean precommitting = false;
+      Termination(int round) { this.round = round; }
+    }
+
+    private final Map<Integer, Termination> terminations = new HashMap<>();
+
+    public Participant(int id) { super(id, Protocol.PRESUMED_NOTHING); }
+
+    static public Props props(int id) {
+      return Props.create(Participant.class, () -> new Participant(id));
+    }
+
+    @Override
+    public Receive createReceive() {
+      return receiveBuilder()
+        .match(StartMessage.class, this::onStartMessage)
+        .match(VoteRequest.class, this::onVoteRequest)
+        .match(PreCommit.class, this::onPreCommit)
+        .match(PreCommitAck.class, this::onPreCommitAck)
+        .match(DecisionRequest.class, this::onDecisionRequest)
+        .match(DecisionResponse.class, this::onDecisionResponse)
+        .match(TerminationRequest.class, this::onTerminationRequest)
+        .match(StateRequest.class, this::onStateRequest)
+        .match(StateReport.class, this::onStateReport)
+        .match(Tick.class, this::onTick)
+        .match(MetricsSnapshot.class, this::onMetricsSnapshot)
+        .match(Recovery.class, this::onRecovery)
+        .build();
+    }
+
+    public void onStartMessage(StartMessage msg) {
+
+      // the start message is sent on behalf of the coordinator
+      this.coordinator = getSender();
+      this.monitor = msg.monitor;
+      this.group = msg.group;
+      setGroup(msg);
+    }
+
+    public void onVoteRequest(VoteRequest msg) {
+      //if (id==2) {crash(5000); return;}    // simulate a crash
+      Vote v = TwoPhaseCommit.predefinedVote(this.id, N_PARTICIPANTS, msg.txnId);
+
+      // we may have aborted already, if a backup asked before the vote request arrived
+      if (v == Vote.NO || hasDecided(msg.txnId)) {
+        fixDecision(msg.txnId, Decision.ABORT);
+        log.sync();
+        v = Vote.NO;
+      }
+      else {
+        log.append(WriteAheadLog.PREPARE, msg.txnId, (byte) Vote.YES.ordinal(), true);
+        log.sync();
+        inDoubt.put(msg.txnId, State.UNCERTAIN);
+        setTimeout(DECISION_TIMEOUT, msg.txnId);
+        v = Vote.YES;
+      }
+      if (TwoPhaseCommit.verbose) print("txn " + msg.txnId + " sending vote " + v);
+      VoteResponse vote = new VoteResponse(msg.txnId, v);
+      getSender().tell(vote, getSelf());
+      if (monitor != null) monitor.tell(vote, getSelf());
+    }
+
+    public void onPreCommit(PreCommit msg) {
+      if (hasDecided(msg.txnId)) return;
+      precommit(msg.txnId);
+      getSender().tell(new PreCommitAck(msg.txnId), getSelf());
+      setTimeout(DECISION_TIMEOUT, msg.txnId);
+    }
+
+    private void precommit(int txnId) {
+      if (inDoubt.get(txnId) == State.PRECOMMITTED) return;
+      log.append(WriteAheadLog.PRECOMMIT, txnId, (byte) 0, true);
+      log.sync();
+      inDoubt.put(txnId, State.PRECOMMITTED);
+    }
+
+    public void onDecisionResponse(DecisionResponse msg) { /* Decision Response */
+      fixDecision(msg.txnId, msg.decision);
+      log.sync();
+      inDoubt.remove(msg.txnId);
+      cancelTimeout(msg.txnId);
+      if (terminations.remove(msg.txnId) != null) cancelTimeout(~msg.txnId);
+    }
+
+    @Override
+    public void onDecisionRequest(DecisionRequest msg) {
+
+      // a transaction we never voted for: we are free to abort it
+      if (!hasDecided(msg.txnId) && !inDoubt.containsKey(msg.txnId)) {
+        fixDecision(msg.txnId, Decision.ABORT);
+        log.sync();
+      }
+      super.onDecisionRequest(msg);
+    }
+
+    // once decided, a transaction needs no more termination rounds
+    @Override
+    void noteDecision(int txnId, Decision d) {
+      super.noteDecision(txnId, d);
+      rounds.remove(txnId);
+    }
+
+    // timeouts of the transactions use the transaction ID as key,
+    // the ones of the terminations we run as backup use its complement
+    @Override
+    public void onTimeout(int key) {
+      if (key < 0) {
+        onTerminationTimeout(~key);
+        return;
+      }
+      int txnId = key;
+      if (hasDecided(txnId) || !inDoubt.containsKey(txnId)) return;
+
+      // the coordinator (or the last backup) is gone, try the backup of the next round
+      int round = rounds.getOrDefault(txnId, 0) + 1;
+      rounds.put(txnId, round);
+      ActorRef backup = group.get((round - 1) % group.size());
+      if (TwoPhaseCommit.verbose) print("txn " + txnId + " timeout. Electing backup for round " + round);
+      backup.tell(new TerminationRequest(txnId, round), getSelf());
+      setTimeout(DECISION_TIMEOUT, txnId);
+    }
+
+    // our state about a transaction, to be reported to a backup
+    private State stateOf(int txnId) {
+      Decision d = decisionOf(txnId);
+      if (d != null) return d == Decision.COMMIT ? State.COMMITTED : State.ABORTED;
+      return inDoubt.getOrDefault(txnId, State.UNKNOWN);
+    }
+
+    public void onTerminationRequest(TerminationRequest msg) {
+      if (hasDecided(msg.txnId)) {
+        getSender().tell(new DecisionResponse(msg.txnId, decisionOf(msg.txnId)), getSelf());
+        return;
+      }
+
+      // already terminating it, or a later round took over
+      if (rounds.getOrDefault(msg.txnId, 0) > msg.round) return;
+      Termination current = terminations.get(msg.txnId);
+      if (current != null && current.round >= msg.round) return;
+
+      if (TwoPhaseCommit.verbose) print("txn " + msg.txnId + " backup coordinator for round " + msg.round);
+      rounds.put(msg.txnId, msg.round);
+      Termination t = new Termination(msg.round);
+      terminations.put(msg.txnId, t);
+      t.states.put(getSelf(), stateOf(msg.txnId));
+      multicast(new StateRequest(msg.txnId, msg.round));
+      setTimeout(TERMINATION_TIMEOUT, ~msg.txnId);
+
+      // do not give up on ourselves while terminating
+      if (inDoubt.containsKey(msg.txnId)) setTimeout(DECISION_TIMEOUT, msg.txnId);
+    }
+
+    public void onStateRequest(StateRequest msg) {
+
+      // a decided transaction has no rounds left to keep track of
+      if (hasDecided(msg.txnId)) {
+        getSender().tell(new StateReport(msg.txnId, msg.round, stateOf(msg.txnId)), getSelf());
+        return;
+      }
+      if (msg.round < rounds.getOrDefault(msg.txnId, 0)) return;
+      rounds.put(msg.txnId, msg.round);
+
+      // a participant that never voted can abort, the backup cannot commit without it
+      State s = stateOf(msg.txnId);
+      if (s == State.UNKNOWN) {
+        fixDecision(msg.txnId, Decision.ABORT);
+        log.sync();
+        s = State.ABORTED;
+      }
+
+      // a backup is at work: give it time before electing the next one
+      if (inDoubt.containsKey(msg.txnId)) setTimeout(DECISION_TIMEOUT, msg.txnId);
+      getSender().tell(new StateReport(msg.txnId, msg.round, s), getSelf());
+    }
+
+    public void onStateReport(StateReport msg) {
+      Termination t = terminations.get(msg.txnId);
+      if (t == null || t.round != msg.round || t.precommitting) return;
+      t.states.put(getSender(), msg.state);
+      if (t.states.size() == group.size()) {
+        terminate(msg.txnId, t);
+      }
+    }
+
+    public void onPreCommitAck(PreCommitAck msg) {
+      Termination t = terminations.get(msg.txnId);
+      if (t == null || !t.precommitting) return;
+      t.uncertain.remove(getSender());
+      if (t.uncertain.isEmpty()) finish(msg.txnId, Decision.COMMIT);
+    }
+
+    private void onTerminationTimeout(int txnId) {
+      Termination t = terminations.get(txnId);
+      if (t == null) return;
+
+      // the participants that did not answer crashed
+      if (!t.precommitting) terminate(txnId, t);
+      else finish(txnId, Decision.COMMIT);
+    }
+
+    // the termination rule of 3PC, applied to the states collected by the backup
+    private void terminate(int txnId, Termination t) {
+      if (t.states.containsValue(State.COMMITTED)) {
+        finish(txnId, Decision.COMMIT);
+      }
+      else if (t.states.containsValue(State.ABORTED)) {
+        finish(txnId, Decision.ABORT);
+      }
+      else if (t.states.containsValue(State.PRECOMMITTED)) {
+
+        // somebody may have committed already: move the uncertain ones
+        // to PRECOMMITTED before committing, in case we crash as well
+        precommit(txnId);
+        for (Map.Entry<ActorRef, State> e: t.states.entrySet()) {
+          if (e.getValue() == State.UNCERTAIN && !e.getKey().equals(getSelf())) {
+            t.uncertain.add(e.getKey());
+          }
+        }
+        if (t.uncertain.isEmpty()) {
+          finish(txnId, Decision.COMMIT);
+          return;
+        }
+        t.precommitting = true;
+        for (ActorRef p: t.uncertain) p.tell(new PreCommit(txnId), getSelf());
+        setTimeout(TERMINATION_TIMEOUT, ~txnId);
+      }
+      else {
+
+        // nobody is PRECOMMITTED: nobody can have committed
+        finish(txnId, Decision.ABORT);
+      }
+    }
+
+    private void finish(int txnId, Decision d) {
+      terminations.remove(txnId);
+      cancelTimeout(~txnId);
+      if (TwoPhaseCommit.verbose) print("txn " + txnId + " terminated with " + d);
+      fixDecision(txnId, d);
+      log.sync();
+      inDoubt.remove(txnId);
+      cancelTimeout(txnId);
+      DecisionResponse m = new DecisionResponse(txnId, d);
+      multicast(m);
+      coordinator.tell(m, getSelf());
+    }
+
+    @Override
+    public void onRecovery(Recovery msg) {
+      getContext().become(createReceive());
+
+      // the terminations we were running as backup are lost
+      terminations.clear();
+      inDoubt.clear();
+      replayLog();
+      for (int txnId: inDoubt.keySet()) {
+        if (TwoPhaseCommit.verbose) print("txn " + txnId + " recovery. Asking the coordinator.");
+        coordinator.tell(new DecisionRequest(txnId), getSelf());
+        setTimeout(DECISION_TIMEOUT, txnId);
+      }
+    }
+
+    @Override
+    void onLogRecord(byte type, int txnId, byte value) {
+      super.onLogRecord(type, txnId, value);
+      if (type == WriteAheadLog.PREPARE) {
+        inDoubt.put(txnId, State.UNCERTAIN);
+      }
+      else if (type == WriteAheadLog.PRECOMMIT) {
+        inDoubt.put(txnId, State.PRECOMMITTED);
+      }
+      else if (type == WriteAheadLog.DECISION) {
+        inDoubt.remove(txnId);
+      }
+    }
+  }
+
+  /*-- Benchmark -------------------------------------------------------------*/
+
+  // keeps a window of transactions in flight and measures the commit latency,
+  // from the start of a transaction until every participant knows the outcome;
+  // it is the monitor of the participants, so it does not depend on the coordinator
+  public static class BenchClient extends AbstractActor {
+    private final String name;
+    private final ActorRef coordinator;
+    private final int nTransactions;
+    private final int window;
+    private final CountDownLatch finished;
+    private final long[] started;     // start time of each transaction, ns
+    private final int[] decisions;    // participants that decided, per transaction
+    private final BitSet voted;       // transactions that reached the participants
+    private final long[] latencies;   // latencies of the completed transactions, ns
+    private int nextTxnId = 0;
+    private int done = 0;
+    private long start;
+
+    public BenchClient(String name, ActorRef coordinator, int nTransactions, int window,
+        CountDownLatch finished) {
+      this.name = name;
+      this.coordinator = coordinator;
+      this.nTransactions = nTransactions;
+      this.window = window;
+      this.finished = finished;
+      this.started = new long[nTransactions];
+      this.decisions = new int[nTransactions];
+      this.voted = new BitSet(nTransactions);
+      this.latencies = new long[nTransactions];
+    }
+
+    static public Props props(String name, ActorRef coordinator, int nTransactions, int window,
+        CountDownLatch finished) {
+      return Props.create(BenchClient.class,
+          () -> new BenchClient(name, coordinator, nTransactions, window, finished));
+    }
+
+    @Override
+    public Receive createReceive() {
+      return receiveBuilder()
+        .match(StartMessage.class, this::onStartMessage)
+        .match(VoteResponse.class, msg -> voted.set(msg.txnId))
+        .match(TransactionDone.class, this::onTransactionDone)
+        .match(Retry.class, this::onRetry)
+        .build();
+    }
+
+    // the group is ready: fill the window
+    public void onStartMessage(StartMessage msg) {
+      start = System.nanoTime();
+      for (int i=0; i<window; i++) startNext();
+      getContext().system().scheduler().scheduleWithFixedDelay(
+          Duration.create(RETRY_TIMEOUT, TimeUnit.MILLISECONDS),
+          Duration.create(RETRY_TIMEOUT, TimeUnit.MILLISECONDS),
+          getSelf(),
+          new Retry(), // the message to send
+          getContext().system().dispatcher(), getSelf()
+          );
+    }
+
+    // a crashed coordinator drops the requests: start again the transactions
+    // that no participant heard of (the coordinator ignores the ones it knows about);
+    // the latency counts from the last attempt, as we measure how long the
+    // participants block, not how long the coordinator is unavailable
+    public void onRetry(Retry msg) {
+      long now = System.nanoTime();
+      for (int txnId=0; txnId<nextTxnId; txnId++) {
+        if (!voted.get(txnId) && decisions[txnId] == 0
+            && now - started[txnId] > TimeUnit.MILLISECONDS.toNanos(RETRY_TIMEOUT)) {
+          started[txnId] = now;
+          coordinator.tell(new StartTransaction(txnId), getSelf());
+        }
+      }
+    }
+
+    private void startNext() {
+      if (nextTxnId == nTransactions) return;
+      started[nextTxnId] = System.nanoTime();
+      coordinator.tell(new StartTransaction(nextTxnId++), getSelf());
+    }
+
+    public void onTransactionDone(TransactionDone msg) {
+
+      // the one from the coordinator does not count, only the participants' do
+      if (getSender().equals(coordinator)) return;
+      if (++decisions[msg.txnId] < N_PARTICIPANTS) return;
+      latencies[done++] = System.nanoTime() - started[msg.txnId];
+      startNext();
+      if (done == nTransactions) {
+        report();
+        finished.countDown();
+      }
+    }
+
+    private void report() {
+      long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      Arrays.sort(latencies);
+      System.out.format("%s: %d transaction(s) in %d ms (%.1f txn/s), commit latency "
+          + "p50 %.1f ms, p99 %.1f ms, p99.9 %.1f ms, max %.1f ms\n",
+          name, done, ms, done * 1000.0 / Math.max(ms, 1), percentile(0.5), percentile(0.99),
+          percentile(0.999), latencies[done - 1] / 1e6);
+    }
+
+    private double percentile(double p) {
+      return latencies[(int) Math.min(done - 1, Math.ceil(p * done) - 1)] / 1e6;
+    }
+  }
+
+  // run the same workload with 2PC and 3PC, with coordinator crashes,
+  // and compare the tail latencies; 2PC runs without batching, like 3PC,
+  // so that its latencies do not include the time messages wait in a batch
+  static void bench() {
+    TwoPhaseCommit.batching = false;
+    for (String engine: new String[] {"2PC (no batching)", "3PC"}) {
+      WriteAheadLog.clear(Paths.get(TwoPhaseCommit.LOG_DIR));
+      final ActorSystem system = ActorSystem.create("bench");
+      boolean is3pc = engine.equals("3PC");
+      ActorRef coordinator = system.actorOf(is3pc ? Coordinator.props()
+          : TwoPhaseCommit.Coordinator.props(Protocol.PRESUMED_NOTHING), "coordinator");
+      List<ActorRef> group = new ArrayList<>();
+      for (int i=0; i<N_PARTICIPANTS; i++) {
+        group.add(system.actorOf(is3pc ? Participant.props(i)
+            : TwoPhaseCommit.Participant.props(i, Protocol.PRESUMED_NOTHING), "participant" + i));
+      }
+      CountDownLatch finished = new CountDownLatch(1);
+      ActorRef client = system.actorOf(BenchClient.props(engine, coordinator,
+          BENCH_TRANSACTIONS, BENCH_WINDOW, finished), "client");
+
+      coordinator.tell(new InjectCrashes(CRASH_PROBABILITY, CRASH_RECOVERY), null);
+      StartMessage start = new StartMessage(group, client);
+      for (ActorRef peer: group) {
+        peer.tell(start, coordinator);
+      }
+      coordinator.tell(start, null);
+      client.tell(start, null);
+
+      try {
+        finished.await();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      system.terminate();
+      system.getWhenTerminated().toCompletableFuture().join();
+    }
+  }
+
+  /*-- Main ------------------------------------------------------------------*/
+  public static void main(String[] args) {
+
+    // "bench" compares the commit latency of 2PC and 3PC under coordinator crashes
+    if (args.length > 0 && args[0].equals("bench")) {
+      bench();
+      return;
+    }
+
+    // Start from empty logs
+    WriteAheadLog.clear(Paths.get(TwoPhaseCommit.LOG_DIR));
+
+    // Create the actor system
+    final ActorSystem system = ActorSystem.create("helloakka");
+
+    // Create the coordinator
+    ActorRef coordinator = system.actorOf(Coordinator.props(), "coordinator");
+
+    // Create participants
+    List<ActorRef> group = new ArrayList<>();
+    for (int i=0; i<N_PARTICIPANTS; i++) {
+      group.add(system.actorOf(Participant.props(i), "participant" + i));
+    }
+
+    // Send start messages to the participants to inform them of the group,
+    // on behalf of the coordinator
+    StartMessage start = new StartMessage(group);
+    for (ActorRef peer: group) {
+      peer.tell(start, coordinator);
+    }
+
+    // Send the start messages to the coordinator
+    coordinator.tell(start, null);
+
+    // Start the transactions, the coordinator runs them concurrently
+    system.actorOf(TwoPhaseCommit.Client.props(coordinator, N_TRANSACTIONS), "client");
+
+    try {
+      System.out.println(">>> Press ENTER to exit <<<");
+      System.in.read();
+    }
+    catch (IOException ignored) {}
+    system.terminate();
+  }
+}
@@ -0,0 +1,129 @@
+package it.unitn.ds1;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+// A hashed timing wheel for the timeouts of a single actor.
+// Time is divided in ticks of tickMs milliseconds, and each tick maps to a
+// slot of the wheel. Timers are keyed by an integer (e.g., a transaction ID):
+// setting a timer for a key replaces the previous one, and cancelling is
+// O(1). The actor only needs a periodic Tick message while some timer is
+// pending, and all the timers expiring in the same tick fire on the same Tick.
+// Not thread-safe: it is meant to be used from within the actor.
+public class TimerWheel {
+
+  // a pending timer, linked in the list of its slot
+  private static class Entry {
+    int key;
+    long deadline;    // tick at which the timer expires
+    Entry prev, next;
+  }
+
+  private final long tickNanos;
+  private final Entry[] slots;       // heads of the slot lists
+  private final int mask;
+  private final long start = System.nanoTime();
+  private long currentTick = 0;      // last tick processed
+  private final Map<Integer, Entry> timers = new HashMap<>();
+  private Entry free = null;         // entries to reuse
+  private int[] expiredKeys = new int[16];
+
+  public TimerWheel(int tickMs, int nSlots) {
+    if (Integer.bitCount(nSlots) != 1) {
+      throw new IllegalArgumentException("the number of slots must be a power of two");
+    }
+    this.tickNanos = tickMs * 1000000L;
+    this.slots = new Entry[nSlots];
+    this.mask = nSlots - 1;
+  }
+
+  private long now() {
+    return (System.nanoTime() - start) / tickNanos;
+  }
+
+  // set the timer of a key to expire in delay ms, replacing any previous one
+  public void schedule(int key, int delayMs) {
+    Entry e = timers.get(key);
+    if (e != null) {
+      unlink(e);
+    }
+    else {
+      e = free;
+      if (e != null) free = e.next;
+      else e = new Entry();
+      e.key = key;
+      timers.put(key, e);
+    }
+
+    // round up, so that a timer never fires early
+    long ticks = Math.max(1, (delayMs * 1000000L + tickNanos - 1) / tickNanos);
+    e.deadline = Math.max(now(), currentTick) + ticks;
+    link(e);
+  }
+
+  // cancel the timer of a key, returns false if there was none
+  public boolean cancel(int key) {
+    Entry e = timers.remove(key);
+    if (e == null) return false;
+    unlink(e);
+    release(e);
+    return true;
+  }
+
+  public boolean isEmpty() {
+    return timers.isEmpty();
+  }
+
+  // process all the ticks elapsed so far, calling expired for each timer that fires
+  public void advance(IntConsumer expired) {
+    long target = now();
+    while (currentTick < target && !timers.isEmpty()) {
+      currentTick++;
+
+      // collect the expired keys first: the callback may set or cancel timers
+      int n = 0;
+      Entry e = slots[(int) (currentTick & mask)];
+      while (e != null) {
+        Entry next = e.next;
+
+        // timers more than one revolution ahead stay in the slot
+        if (e.deadline <= currentTick) {
+          if (n == expiredKeys.length) expiredKeys = Arrays.copyOf(expiredKeys, 2 * n);
+          expiredKeys[n++] = e.key;
+          timers.remove(e.key);
+          unlink(e);
+          release(e);
+        }
+        e = next;
+      }
+      for (int i=0; i<n; i++) {
+        expired.accept(expiredKeys[i]);
+      }
+    }
+
+    // nothing pending: skip the idle ticks
+    if (timers.isEmpty()) currentTick = Math.max(currentTick, target);
+  }
+
+  private void link(Entry e) {
+    int s = (int) (e.deadline & mask);
+    e.prev = null;
+    e.next = slots[s];
+    if (e.next != null) e.next.prev = e;
+    slots[s] = e;
+  }
+
+  private void unlink(Entry e) {
+    if (e.prev != null) e.prev.next = e.next;
+    else slots[(int) (e.deadline & mask)] = e.next;
+    if (e.next != null) e.next.prev = e.prev;
+    e.prev = e.next = null;
+  }
+
+  private void release(Entry e) {
+    e.next = free;
+    free = e;
+  }
+}
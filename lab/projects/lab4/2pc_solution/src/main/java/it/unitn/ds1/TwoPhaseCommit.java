@@ -3,6 +3,7 @@ package it.unitn.ds1;
 import akka.actor.ActorRef;
 import akka.actor.AbstractActor;
 import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
 import akka.actor.Props;
 import scala.concurrent.duration.Duration;
 
@@ -10,65 +11,292 @@ import java.io.Serializable;
 import java.util.concurrent.TimeUnit;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.BitSet;
+import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.lang.Thread;
 import java.util.Collections;
+import java.util.function.IntConsumer;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 
 public class TwoPhaseCommit {
   final static int N_PARTICIPANTS = 3;
+  final static int N_TRANSACTIONS = 10;      // transactions started by main
+  final static int N_COORDINATORS = 2;       // coordinator shards started by main
+  final static int MAX_SHARDS = 8;           // load generator: up to this many shards
+  final static int LOAD_TRANSACTIONS = 20000; // load generator: transactions per run
+  final static int LOAD_WINDOW = 512;        // load generator: transactions in flight
+  final static int TREE_FANOUT = 2;          // children per node in tree mode
   final static int VOTE_TIMEOUT = 1000;      // timeout for the votes, ms
   final static int DECISION_TIMEOUT = 2000;  // timeout for the decision, ms
-
-  // the votes that the participants will send (for testing)
-  final static Vote[] predefinedVotes = 
+  final static int MAX_DECISION_TIMEOUT = 32000; // cap of the backoff when asking around, ms
+  final static int TERMINATION_FANOUT = 2;   // peers asked at each attempt
+  final static int GOSSIP_FANOUT = 2;        // peers a decision is pushed to
+  final static int BATCH_SIZE = 32;          // messages per participant before a batch is sent
+  final static int BATCH_TIMEOUT = 10;       // max time a message waits in a batch, ms
+  final static String LOG_DIR = "wal";       // where the nodes keep their logs
+  final static int TICK = 10;                // resolution of the timeouts, ms
+  final static int WHEEL_SLOTS = 512;        // ticks in a round of the timer wheel
+  final static String METRICS_DIR = "metrics"; // where the nodes export their metrics
+  final static int METRICS_INTERVAL = 1000;  // time between metrics snapshots, ms
+  final static int RETRY_TIMEOUT = 5000;     // client: start again the transactions not done, ms
+
+  // the votes that the participants will send (for testing): a row with the
+  // vote of each participant, or several rows to vary the votes over the
+  // transactions, transaction t using row t mod rows; benchmarks replace them
+  // before creating the nodes
+  static Vote[] predefinedVotes =
     new Vote[] {Vote.YES, Vote.YES, Vote.YES}; // as many as N_PARTICIPANTS
 
-  // Start message that sends the list of participants to everyone
+  // print what the nodes do; benchmarks turn it off
+  static boolean verbose = true;
+
+  // export snapshots of the metrics of each node to METRICS_DIR
+  static boolean exportMetrics = false;
+
+  // the participants vote along with the last piece of work of a transaction,
+  // without a separate vote request
+  static boolean earlyPrepare = false;
+
+  // the coordinator batches the messages to each participant; without batching
+  // they leave as soon as they are posted (the 3PC benchmark turns it off,
+  // as 3PC does not batch)
+  static boolean batching = true;
+
+  // the predefined vote of a participant in a group of n, for a transaction
+  static Vote predefinedVote(int participant, int n, int txnId) {
+    int rows = Math.max(1, predefinedVotes.length / n);
+    return predefinedVotes[(txnId % rows) * n + participant];
+  }
+
+  // Start message that sends the list of participants to everyone;
+  // if there is a monitor, the participants tell it about their votes and decisions;
+  // without a router, the sender is the only coordinator;
+  // with a fan-out, the coordinator and the participants form a tree (see Participant)
   public static class StartMessage implements Serializable {
     public final List<ActorRef> group;
-    public StartMessage(List<ActorRef> group) {
+    public final ActorRef monitor;
+    public final ShardRouter router;
+    public final int fanout;    // 0 for no tree
+    public StartMessage(List<ActorRef> group) { this(group, null); }
+    public StartMessage(List<ActorRef> group, ActorRef monitor) { this(group, monitor, null); }
+    public StartMessage(List<ActorRef> group, ActorRef monitor, ShardRouter router) {
+      this(group, monitor, router, 0);
+    }
+    public StartMessage(List<ActorRef> group, ActorRef monitor, ShardRouter router, int fanout) {
       this.group = Collections.unmodifiableList(new ArrayList<>(group));
+      this.monitor = monitor;
+      this.router = router;
+      this.fanout = fanout;
+    }
+  }
+
+  // Message asking the coordinator to run a new transaction,
+  // transaction IDs are chosen by the client and must be unique;
+  // members are the positions in the group of the participants that the
+  // transaction touches (null for all of them, always all in tree mode),
+  // and with work the coordinator sends them some work before the votes
+  public static class StartTransaction implements Serializable {
+    public final int txnId;
+    public final int[] members;
+    public final boolean work;
+    public StartTransaction(int txnId) { this(txnId, null, false); }
+    public StartTransaction(int txnId, int[] members, boolean work) {
+      this.txnId = txnId;
+      this.members = members;
+      this.work = work;
     }
   }
 
-  public enum Vote {NO, YES}
+  // sent by the coordinator to whoever started the transaction, once decided
+  public static class TransactionDone implements Serializable {
+    public final int txnId;
+    public final Decision decision;
+    public TransactionDone(int txnId, Decision d) { this.txnId = txnId; decision = d; }
+  }
+
+  // a READ_ONLY participant wrote nothing: it does not care about the outcome
+  public enum Vote {NO, YES, READ_ONLY}
   public enum Decision {ABORT, COMMIT}
 
-  public static class VoteRequest implements Serializable {}
+  // protocol variants: with a presumed outcome, the coordinator forgets
+  // transactions with that outcome right away and answers "no record"
+  // with the presumed outcome, so that outcome needs neither forces at the
+  // participants nor acknowledgements; with presumed commit the coordinator
+  // still forces its commit records, as they cancel its forced BEGIN records
+  public enum Protocol {PRESUMED_NOTHING, PRESUMED_ABORT, PRESUMED_COMMIT}
+
+  // with a single participant, the request is one-phase: the participant
+  // decides by itself, and its vote is the decision
+  public static class VoteRequest implements Serializable {
+    public final int txnId;
+    public final boolean onePhase;
+    public VoteRequest(int txnId) { this(txnId, false); }
+    public VoteRequest(int txnId, boolean onePhase) {
+      this.txnId = txnId;
+      this.onePhase = onePhase;
+    }
+  }
+
+  // a piece of work of a transaction for a participant; with early prepare
+  // it carries the vote request, and the participant answers with its vote
+  // instead of a WorkDone
+  public static class Work implements Serializable {
+    public final int txnId;
+    public final VoteRequest prepare;   // null if not the last piece
+    public Work(int txnId, VoteRequest prepare) { this.txnId = txnId; this.prepare = prepare; }
+  }
+
+  // sent by a participant once done with the work of some transactions
+  public static class WorkDone implements Serializable {
+    public final int[] txnIds;
+    public WorkDone(int... txnIds) { this.txnIds = txnIds; }
+  }
 
   public static class VoteResponse implements Serializable {
+    public final int txnId;
     public final Vote vote;
-    public VoteResponse(Vote v) { vote = v; }
+    public VoteResponse(int txnId, Vote v) { this.txnId = txnId; vote = v; }
   }
 
-  public static class DecisionRequest implements Serializable {}
+  public static class DecisionRequest implements Serializable {
+    public final int txnId;
+    public DecisionRequest(int txnId) { this.txnId = txnId; }
+  }
 
   public static class DecisionResponse implements Serializable {
+    public final int txnId;
     public final Decision decision;
-    public DecisionResponse(Decision d) { decision = d; }
+    public DecisionResponse(int txnId, Decision d) { this.txnId = txnId; decision = d; }
   }
 
-  public static class Timeout implements Serializable {}
+  // sent by a participant to the coordinator once it knows the decisions
+  public static class DecisionAck implements Serializable {
+    public final int[] txnIds;
+    public DecisionAck(int... txnIds) { this.txnIds = txnIds; }
+  }
+
+  // work, vote requests and decisions sent together from the coordinator to a participant
+  public static class Batch implements Serializable {
+    public final List<Work> work;
+    public final List<VoteRequest> voteRequests;
+    public final List<DecisionResponse> decisions;
+    public Batch(List<VoteRequest> voteRequests, List<DecisionResponse> decisions) {
+      this(Collections.emptyList(), voteRequests, decisions);
+    }
+    public Batch(List<Work> work, List<VoteRequest> voteRequests, List<DecisionResponse> decisions) {
+      this.work = Collections.unmodifiableList(new ArrayList<>(work));
+      this.voteRequests = Collections.unmodifiableList(new ArrayList<>(voteRequests));
+      this.decisions = Collections.unmodifiableList(new ArrayList<>(decisions));
+    }
+  }
+
+  // the votes of a participant for all the vote requests of a batch
+  public static class VoteBatch implements Serializable {
+    public final List<VoteResponse> votes;
+    public VoteBatch(List<VoteResponse> votes) {
+      this.votes = Collections.unmodifiableList(new ArrayList<>(votes));
+    }
+  }
+
+  // sent by the coordinator to itself when the pending batches must be sent
+  public static class FlushBatches implements Serializable {}
+
+  // sent periodically by a node to itself while it has timeouts pending
+  public static class Tick implements Serializable {}
 
   public static class Recovery implements Serializable {}
 
+  // sent periodically by a node to itself to export its metrics
+  public static class MetricsSnapshot implements Serializable {}
+
+  // sent periodically by the client to itself to retry the transactions not done
+  public static class Retry implements Serializable {}
+
+  // makes a coordinator crash with some probability right before sending
+  // its decisions, and recover after the given time (for benchmarks)
+  public static class InjectCrashes implements Serializable {
+    public final double probability;
+    public final int recoverIn;
+    public InjectCrashes(double probability, int recoverIn) {
+      this.probability = probability;
+      this.recoverIn = recoverIn;
+    }
+  }
+
   /*-- Common functionality for both Coordinator and Participants ------------*/
 
   public abstract static class Node extends AbstractActor {
     protected int id;                           // node ID
+    protected final Protocol protocol;          // protocol variant
     protected List<ActorRef> participants;      // list of participant nodes
-    protected Decision decision = null;         // decision taken by this node
+    protected ActorRef monitor = null;          // told about votes and decisions, if any
+
+    // decisions taken by this node, one bit per transaction ID:
+    // a transaction is decided if its bit in "decided" is set,
+    // and it committed if its bit in "committed" is set as well
+    private final BitSet decided = new BitSet();
+    private final BitSet committed = new BitSet();
+
+    // durable log: the only state that survives a crash
+    protected WriteAheadLog log;
+
+    // timeouts of the transactions, and the timer that makes the wheel turn
+    private final TimerWheel timers = new TimerWheel(TICK, WHEEL_SLOTS);
+    private Cancellable ticker = null;
+
+    // latencies of the commit path, exported periodically if asked to
+    protected final NodeMetrics metrics = new NodeMetrics();
+    private Cancellable snapshots = null;
+
+    // called by the wheel for each timer that fires
+    private final IntConsumer expired = txnId -> {
+      metrics.timeouts++;
+      onTimeout(txnId);
+    };
+
+    // crashes injected by a benchmark
+    private final Random rnd = new Random();
+    private InjectCrashes crashes = null;
 
-    public Node(int id) {
+    public Node(int id, Protocol protocol) {
       super();
       this.id = id;
+      this.protocol = protocol;
     }
 
-    // abstract method to be implemented in extending classes
+    @Override
+    public void preStart() {
+      log = WriteAheadLog.open(Paths.get(LOG_DIR), getSelf().path().name());
+      if (exportMetrics) {
+        metrics.open(Paths.get(METRICS_DIR), getSelf().path().name());
+        snapshots = getContext().system().scheduler().scheduleWithFixedDelay(
+            Duration.create(METRICS_INTERVAL, TimeUnit.MILLISECONDS),
+            Duration.create(METRICS_INTERVAL, TimeUnit.MILLISECONDS),
+            getSelf(),
+            new MetricsSnapshot(), // the message to send
+            getContext().system().dispatcher(), getSelf()
+            );
+      }
+    }
+
+    @Override
+    public void postStop() {
+      if (verbose) print(log.forces() + " log force(s)");
+      if (snapshots != null) snapshots.cancel();
+      metrics.close();
+    }
+
+    // abstract methods to be implemented in extending classes
     protected abstract void onRecovery(Recovery msg);
+    protected abstract void onTimeout(int txnId);
 
     void setGroup(StartMessage sm) {
       participants = new ArrayList<>();
@@ -79,7 +307,7 @@ public class TwoPhaseCommit {
           this.participants.add(b);
         }
       }
-      print("starting with " + sm.group.size() + " peer(s)");
+      if (verbose) print("starting with " + sm.group.size() + " peer(s)");
     }
 
     // emulate a crash and a recovery in a given time
@@ -89,13 +317,36 @@ public class TwoPhaseCommit {
 
       // setting a timer to "recover"
       getContext().system().scheduler().scheduleOnce(
-          Duration.create(recoverIn, TimeUnit.MILLISECONDS),  
+          Duration.create(recoverIn, TimeUnit.MILLISECONDS),
           getSelf(),
           new Recovery(), // message sent to myself
           getContext().system().dispatcher(), getSelf()
           );
     }
 
+    public void onInjectCrashes(InjectCrashes msg) {
+      crashes = msg;
+    }
+
+    public void onMetricsSnapshot(MetricsSnapshot msg) {
+      metrics.snapshot();
+    }
+
+    // crash at random if asked to inject crashes, returns true if crashed
+    boolean injectCrash() { return injectCrash(1); }
+
+    // same, with one chance of crashing for each of n decisions
+    boolean injectCrash(int n) {
+      if (crashes == null) return false;
+      for (int i=0; i<n; i++) {
+        if (rnd.nextDouble() < crashes.probability) {
+          crash(crashes.recoverIn);
+          return true;
+        }
+      }
+      return false;
+    }
+
     // emulate a delay of d milliseconds
     void delay(int d) {
       try {Thread.sleep(d);} catch (Exception ignored) {}
@@ -114,29 +365,103 @@ public class TwoPhaseCommit {
       }
     }
 
-    // schedule a Timeout message in specified time
-    void setTimeout(int time) {
-      getContext().system().scheduler().scheduleOnce(
-          Duration.create(time, TimeUnit.MILLISECONDS),  
-          getSelf(),
-          new Timeout(), // the message to send
-          getContext().system().dispatcher(), getSelf()
-          );
+    // set the timeout of a transaction in specified time, replacing the previous one
+    void setTimeout(int time, int txnId) {
+      timers.schedule(txnId, time);
+      if (ticker == null) {
+        ticker = getContext().system().scheduler().scheduleWithFixedDelay(
+            Duration.create(TICK, TimeUnit.MILLISECONDS),
+            Duration.create(TICK, TimeUnit.MILLISECONDS),
+            getSelf(),
+            new Tick(), // the message to send
+            getContext().system().dispatcher(), getSelf()
+            );
+      }
     }
 
-    // fix the final decision of the current node
-    void fixDecision(Decision d) {
-      if (!hasDecided()) {
-        this.decision = d;
-        print("decided " + d);
+    void cancelTimeout(int txnId) {
+      timers.cancel(txnId);
+    }
+
+    public void onTick(Tick msg) {
+      timers.advance(expired);
+
+      // stop ticking when there is nothing left to wait for
+      if (timers.isEmpty() && ticker != null) {
+        ticker.cancel();
+        ticker = null;
+      }
+    }
+
+    // the outcome assumed when there is no record of a transaction, if any
+    Decision presumedDecision() {
+      switch (protocol) {
+        case PRESUMED_ABORT: return Decision.ABORT;
+        case PRESUMED_COMMIT: return Decision.COMMIT;
+        default: return null;
       }
     }
 
-    boolean hasDecided() { return decision != null; } // has the node decided?
+    boolean isPresumed(Decision d) { return d == presumedDecision(); }
+
+    // fix the final decision of the current node for a transaction;
+    // the decision is logged, and unless presumed it is durable after the next log sync
+    void fixDecision(int txnId, Decision d) {
+      fixDecision(txnId, d, !isPresumed(d));
+    }
+
+    // same, forcing the decision or not whatever the protocol presumes
+    void fixDecision(int txnId, Decision d, boolean forced) {
+      if (!hasDecided(txnId)) {
+        log.append(WriteAheadLog.DECISION, txnId, (byte) d.ordinal(), forced);
+        noteDecision(txnId, d);
+      }
+    }
+
+    // take note of a decision that is durable somewhere else, without logging it
+    void noteDecision(int txnId, Decision d) {
+      if (!hasDecided(txnId)) {
+        decided.set(txnId);
+        if (d == Decision.COMMIT) committed.set(txnId);
+        metrics.decided(txnId);
+        if (verbose) print("txn " + txnId + " decided " + d);
+        if (monitor != null) monitor.tell(new TransactionDone(txnId, d), getSelf());
+      }
+    }
+
+    // rebuild the state of the node from its log: after a real crash,
+    // the log is all that is left
+    void replayLog() {
+      decided.clear();
+      committed.clear();
+      long start = System.nanoTime();
+      int n = log.replay(this::onLogRecord);
+      metrics.recovery.record(System.nanoTime() - start);
+      if (verbose) print("replayed " + n + " log record(s) in "
+          + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    // apply a log record while replaying the log
+    void onLogRecord(byte type, int txnId, byte value) {
+      if (type == WriteAheadLog.DECISION) {
+        decided.set(txnId);
+        if (value == Decision.COMMIT.ordinal()) committed.set(txnId);
+      }
+    }
+
+    // has the node decided on the transaction?
+    boolean hasDecided(int txnId) { return decided.get(txnId); }
+
+    // the decision taken for the transaction, null if not decided yet
+    Decision decisionOf(int txnId) {
+      if (!hasDecided(txnId)) return null;
+      return committed.get(txnId) ? Decision.COMMIT : Decision.ABORT;
+    }
 
-    // a simple logging function
+    // a simple logging function; the callers that build the line check
+    // verbose first, so that quiet runs build no strings on the actor thread
     void print(String s) {
-      System.out.format("%2d: %s\n", id, s);
+      if (verbose) System.out.format("%2d: %s\n", id, s);
     }
 
     @Override
@@ -154,8 +479,8 @@ public class TwoPhaseCommit {
     }
 
     public void onDecisionRequest(DecisionRequest msg) {  /* Decision Request */
-      if (hasDecided())
-        getSender().tell(new DecisionResponse(decision), getSelf());
+      if (hasDecided(msg.txnId))
+        getSender().tell(new DecisionResponse(msg.txnId, decisionOf(msg.txnId)), getSelf());
 
       // just ignoring if we don't know the decision
     }
@@ -165,19 +490,90 @@ public class TwoPhaseCommit {
 
   public static class Coordinator extends Node {
 
-    // here all the nodes that sent YES are collected
-    private final Set<ActorRef> yesVoters = new HashSet<>();
+    // state of a transaction that is still in flight, participants are
+    // identified by their position in the group
+    private static class Transaction {
+      ActorRef client;                        // who started the transaction, or asked last
+      final BitSet members;                   // participants it touches
+      final boolean onePhase;                 // a single participant decides
+      final BitSet worked = new BitSet();     // participants done with the work
+      final BitSet yesVoters = new BitSet();  // participants that voted YES
+      final BitSet readOnly = new BitSet();   // participants that voted READ_ONLY
+      final BitSet acks = new BitSet();       // participants that know the decision
+      Transaction(ActorRef client, BitSet members) {
+        this.client = client;
+        this.members = members;
+        this.onePhase = members.cardinality() == 1;
+      }
+    }
 
-    boolean allVotedYes() { // returns true if all voted YES
-      return yesVoters.size() >= N_PARTICIPANTS;
+    // in-flight transactions, an entry is dropped when all participants
+    // have acknowledged the decision (right after the decision, if presumed)
+    private final Map<Integer, Transaction> transactions = new HashMap<>();
+
+    // while replaying the log, the participants of the transactions that
+    // do not touch all of them, and those that voted READ_ONLY
+    private final Map<Integer, BitSet> loggedMembers = new HashMap<>();
+    private final Map<Integer, BitSet> loggedReadOnly = new HashMap<>();
+
+    // messages waiting to be sent to a participant
+    private static class Outbox {
+      final List<Work> work = new ArrayList<>();
+      final List<VoteRequest> voteRequests = new ArrayList<>();
+      final List<DecisionResponse> decisions = new ArrayList<>();
+      int size() { return work.size() + voteRequests.size() + decisions.size(); }
+      void clear() { work.clear(); voteRequests.clear(); decisions.clear(); }
     }
 
-    public Coordinator() {
-      super(-1); // the coordinator has the id -1
+    // position of each participant in the group
+    private final Map<ActorRef, Integer> index = new HashMap<>();
+
+    // pending batches, one for each participant (in group order)
+    private final List<Outbox> outboxes = new ArrayList<>();
+    private boolean flushScheduled = false;
+
+    // in tree mode the participants we talk to are the roots of the subtrees,
+    // and their votes and acks stand for their whole subtree
+    private boolean tree = false;
+
+    boolean allVotedYes(Transaction t) { // returns true if all voted YES (or READ_ONLY)
+      return t.yesVoters.cardinality() + t.readOnly.cardinality() >= t.members.cardinality();
     }
 
-    static public Props props() {
-      return Props.create(Coordinator.class, Coordinator::new);
+    // returns true if all the participants that need the decision acknowledged it
+    boolean allAcked(Transaction t) {
+      return t.acks.cardinality() + t.readOnly.cardinality() >= t.members.cardinality();
+    }
+
+    // the positions of the participants of a transaction, null for everybody
+    BitSet members(int[] positions) {
+      BitSet m = new BitSet();
+      if (positions == null || tree) m.set(0, participants.size());
+      else for (int p: positions) m.set(p);
+      return m;
+    }
+
+    // a transaction found in the log: its participants (everybody if not
+    // logged) and those left out of the second phase
+    Transaction logged(int txnId) {
+      BitSet m = loggedMembers.remove(txnId);
+      Transaction t = new Transaction(null, m != null ? m : members(null));
+      BitSet r = loggedReadOnly.remove(txnId);
+      if (r != null) t.readOnly.or(r);
+      return t;
+    }
+
+    // coordinator shards have the ids -1, -2, ...
+    public Coordinator(Protocol protocol, int shard) {
+      super(-1 - shard, protocol);
+    }
+
+    static public Props props(Protocol protocol) {
+      return props(protocol, 0);
+    }
+
+    static public Props props(Protocol protocol, int shard) {
+      return Props.create(Coordinator.class, () -> new Coordinator(protocol, shard));
     }
 
     @Override
@@ -185,120 +581,718 @@ public class TwoPhaseCommit {
       return receiveBuilder()
         .match(Recovery.class, this::onRecovery)
         .match(StartMessage.class, this::onStartMessage)
-        .match(VoteResponse.class, this::onVoteResponse)
-        .match(Timeout.class, this::onTimeout)
+        .match(StartTransaction.class, this::onStartTransaction)
+        .match(InjectCrashes.class, this::onInjectCrashes)
+        .match(VoteBatch.class, this::onVoteBatch)
+        .match(WorkDone.class, this::onWorkDone)
+        .match(DecisionAck.class, this::onDecisionAck)
+        .match(FlushBatches.class, this::onFlushBatches)
+        .match(Tick.class, this::onTick)
+        .match(MetricsSnapshot.class, this::onMetricsSnapshot)
         .match(DecisionRequest.class, this::onDecisionRequest)
         .build();
     }
 
     public void onStartMessage(StartMessage msg) {                   /* Start */
       setGroup(msg);
-      print("Sending vote request");
-      multicast(new VoteRequest());
-      //multicastAndCrash(new VoteRequest(), 3000);
-      setTimeout(VOTE_TIMEOUT);
+      if (msg.fanout > 0) {
+
+        // tree mode: we only talk to the first participants, our children
+        tree = true;
+        participants = new ArrayList<>(msg.group.subList(0, Math.min(msg.fanout, msg.group.size())));
+      }
+      for (int i=0; i<participants.size(); i++) {
+        index.put(participants.get(i), i);
+        outboxes.add(new Outbox());
+      }
+    }
+
+    public void onStartTransaction(StartTransaction msg) {
+      int txnId = msg.txnId;
+
+      // a retry: the client may have missed the outcome, e.g. of a transaction
+      // aborted while we recovered; a transaction in flight answers the new sender
+      if (hasDecided(txnId)) {
+        getSender().tell(new TransactionDone(txnId, decisionOf(txnId)), getSelf());
+        return;
+      }
+      if (transactions.containsKey(txnId)) {
+        transactions.get(txnId).client = getSender();
+        return;
+      }
+      Transaction t = new Transaction(getSender(), members(msg.members));
+      transactions.put(txnId, t);
+
+      // with presumed abort, a transaction we know nothing about is aborted:
+      // no need to remember that it started; with a single participant
+      // its decision is the only record (one-phase commit)
+      // a recovering coordinator must know whom to send the decision to:
+      // the members are durable with the first forced record of the transaction
+      if (msg.members != null && !tree && !t.onePhase) {
+        for (int i = t.members.nextSetBit(0); i >= 0; i = t.members.nextSetBit(i + 1)) {
+          log.append(WriteAheadLog.MEMBER, txnId, (byte) i, false);
+        }
+      }
+      if (protocol != Protocol.PRESUMED_ABORT && !t.onePhase) {
+        log.append(WriteAheadLog.BEGIN, txnId, (byte) 0, true);
+      }
+      metrics.waiting(txnId);
+      VoteRequest r = new VoteRequest(txnId, t.onePhase);
+      if (msg.work && !tree) {
+
+        // with early prepare the vote request goes along with the work
+        if (verbose) print("txn " + txnId + " sending work");
+        post(t.members, new Work(txnId, earlyPrepare ? r : null));
+      }
+      else {
+        if (verbose) print("txn " + txnId + " sending vote request");
+        post(t.members, r);
+      }
+      //flushBatches(); multicastAndCrash(new Batch(List.of(new VoteRequest(txnId)), List.of()), 3000);
+      setTimeout(VOTE_TIMEOUT, txnId);
       //crash(5000);
     }
 
-    public void onVoteResponse(VoteResponse msg) {                    /* Vote */
-      if (hasDecided()) {
+    // once everybody did its part, it is time to vote
+    public void onWorkDone(WorkDone msg) {
+      int p = index.get(getSender());
+      for (int txnId: msg.txnIds) {
+        Transaction t = transactions.get(txnId);
+        if (t == null || hasDecided(txnId)) continue;
+        t.worked.set(p);
+        if (t.worked.cardinality() == t.members.cardinality()) {
+          if (verbose) print("txn " + txnId + " sending vote request");
+          post(t.members, new VoteRequest(txnId, t.onePhase));
+        }
+      }
+    }
+
+    public void onVoteBatch(VoteBatch msg) {
+      int decisions = 0;
+      for (VoteResponse v: msg.votes) {
+        if (onVoteResponse(v)) decisions++;
+      }
+
+      // a crash while the decisions wait in the batches blocks the participants
+      injectCrash(decisions);
+    }
 
-        // we have already decided and sent the decision to the group, 
+    // returns true if the vote made us decide
+    public boolean onVoteResponse(VoteResponse msg) {                 /* Vote */
+      Transaction t = transactions.get(msg.txnId);
+      if (t == null || hasDecided(msg.txnId)) {
+
+        // we have already decided and sent the decision to the group,
         // so do not care about other votes
-        return;
+        return false;
       }
       Vote v = (msg).vote;
-      if (v == Vote.YES) {
-        yesVoters.add(getSender());
-        if (allVotedYes()) {
-          fixDecision(Decision.COMMIT);
+      if (t.onePhase) {
+
+        // the participant decided: nothing to log, send or wait for
+        noteDecision(msg.txnId, v == Vote.NO ? Decision.ABORT : Decision.COMMIT);
+        if (t.client != null) {
+          t.client.tell(new TransactionDone(msg.txnId, decisionOf(msg.txnId)), getSelf());
+        }
+        transactions.remove(msg.txnId);
+        cancelTimeout(msg.txnId);
+        return true;
+      }
+      if (v == Vote.YES || v == Vote.READ_ONLY) {
+
+        // read-only participants are done: they are left out of the second phase,
+        // also after a crash (the record is durable with the decision)
+        int p = index.get(getSender());
+        if (v == Vote.YES) t.yesVoters.set(p);
+        else {
+          t.readOnly.set(p);
+          log.append(WriteAheadLog.READ_ONLY, msg.txnId, (byte) p, false);
+        }
+        if (allVotedYes(t)) {
+          decide(msg.txnId, Decision.COMMIT);
           //if (id==-1) {crash(3000); return;}
-          multicast(new DecisionResponse(decision));
-          //multicastAndCrash(new DecisionResponse(decision), 3000);
+          //flushBatches(); crash(3000);
         }
-      } 
+      }
       else { // a NO vote
 
         // on a single NO we decide ABORT
-        fixDecision(Decision.ABORT);
-        multicast(new DecisionResponse(decision));
+        decide(msg.txnId, Decision.ABORT);
       }
+      return hasDecided(msg.txnId);
     }
 
-    public void onTimeout(Timeout msg) {
-      if (!hasDecided()) {
-        print("Timeout");
+    public void onDecisionAck(DecisionAck msg) {
+
+      // in tree mode, a participant that asked us directly acks for nobody
+      Integer p = index.get(getSender());
+      if (p == null) return;
+      for (int txnId: msg.txnIds) {
+        Transaction t = transactions.get(txnId);
+        if (t == null || !t.members.get(p) || t.readOnly.get(p)) continue;
+        t.acks.set(p);
+
+        // everybody knows the decision, no need to keep the transaction around
+        if (allAcked(t)) {
+          forget(txnId);
+        }
+      }
+    }
+
+    void forget(int txnId) {
+      transactions.remove(txnId);
+      cancelTimeout(txnId);
+      log.append(WriteAheadLog.END, txnId, (byte) 0, false);
+    }
+
+    @Override
+    public void onTimeout(int txnId) {
+      Transaction t = transactions.get(txnId);
+      if (t == null) return;
+      if (t.onePhase) {
+
+        // only the participant can decide, ask again
+        if (verbose) print("txn " + txnId + " timeout, asking the participant again");
+        post(t.members, new VoteRequest(txnId, true));
+        setTimeout(VOTE_TIMEOUT, txnId);
+      }
+      else if (!hasDecided(txnId)) {
+        if (verbose) print("txn " + txnId + " timeout");
 
         // not decided in time means ABORT
-        fixDecision(Decision.ABORT);
-        multicast(new DecisionResponse(Decision.ABORT));
+        decide(txnId, Decision.ABORT);
+      }
+      else {
+
+        // some participants did not acknowledge the decision, send it again
+        DecisionResponse m = new DecisionResponse(txnId, decisionOf(txnId));
+        for (int i = t.members.nextSetBit(0); i >= 0; i = t.members.nextSetBit(i + 1)) {
+          if (!t.acks.get(i) && !t.readOnly.get(i)) post(i, m);
+        }
+        setTimeout(DECISION_TIMEOUT, txnId);
+      }
+    }
+
+    // fix the decision, send it to the group and wait for the acknowledgements;
+    // a BEGIN without a decision is aborted on recovery, so with presumed
+    // commit the commit must be on disk before the participants hear of it
+    void decide(int txnId, Decision d) {
+      fixDecision(txnId, d, !isPresumed(d) || protocol == Protocol.PRESUMED_COMMIT);
+      Transaction t = transactions.get(txnId);
+      DecisionResponse m = new DecisionResponse(txnId, d);
+      for (int i = t.members.nextSetBit(0); i >= 0; i = t.members.nextSetBit(i + 1)) {
+        if (!t.readOnly.get(i)) post(i, m);
+      }
+      if (t.client != null) {
+        t.client.tell(new TransactionDone(txnId, d), getSelf());
+      }
+
+      // nobody acknowledges a presumed outcome,
+      // and there is nobody to wait for if everybody was read-only
+      if (isPresumed(d)) {
+        transactions.remove(txnId);
+        cancelTimeout(txnId);
+      }
+      else if (allAcked(t)) {
+        forget(txnId);
+      }
+      else {
+        setTimeout(DECISION_TIMEOUT, txnId);
+      }
+    }
+
+    @Override
+    public void onDecisionRequest(DecisionRequest msg) {
+      Decision d = decisionOf(msg.txnId);
+
+      // no record of a transaction that is not in flight: answer with the presumption
+      if (d == null && !transactions.containsKey(msg.txnId)) {
+        d = presumedDecision();
+      }
+      if (d != null) {
+        getSender().tell(new DecisionResponse(msg.txnId, d), getSelf());
+      }
+    }
+
+    // add some work to the batches of the given participants
+    void post(BitSet members, Work m) {
+      for (int i = members.nextSetBit(0); i >= 0; i = members.nextSetBit(i + 1)) {
+        outboxes.get(i).work.add(m);
+        batchAdded(i);
+      }
+    }
+
+    // add a vote request to the batches of the given participants
+    void post(BitSet members, VoteRequest m) {
+      for (int i = members.nextSetBit(0); i >= 0; i = members.nextSetBit(i + 1)) {
+        outboxes.get(i).voteRequests.add(m);
+        batchAdded(i);
+      }
+    }
+
+    // add a decision to the batches of the given participants
+    void post(BitSet members, DecisionResponse m) {
+      for (int i = members.nextSetBit(0); i >= 0; i = members.nextSetBit(i + 1)) {
+        post(i, m);
       }
     }
 
+    // add a decision to the batch of a single participant
+    void post(int p, DecisionResponse m) {
+      outboxes.get(p).decisions.add(m);
+      batchAdded(p);
+    }
+
+    // send the batch once it is full, otherwise make sure it leaves in time
+    private void batchAdded(int p) {
+      if (!batching || outboxes.get(p).size() >= BATCH_SIZE) {
+        flushBatch(p);
+      }
+      else if (!flushScheduled) {
+        flushScheduled = true;
+        getContext().system().scheduler().scheduleOnce(
+            Duration.create(BATCH_TIMEOUT, TimeUnit.MILLISECONDS),
+            getSelf(),
+            new FlushBatches(), // the message to send
+            getContext().system().dispatcher(), getSelf()
+            );
+      }
+    }
+
+    private void flushBatch(int p) {
+      Outbox o = outboxes.get(p);
+      if (o.size() == 0) return;
+
+      // the batch may carry decisions: they must be durable before they leave
+      log.sync();
+      participants.get(p).tell(new Batch(o.work, o.voteRequests, o.decisions), getSelf());
+      o.clear();
+    }
+
+    void flushBatches() {
+      for (int i=0; i<participants.size(); i++) {
+        flushBatch(i);
+      }
+    }
+
+    public void onFlushBatches(FlushBatches msg) {
+      flushScheduled = false;
+      flushBatches();
+    }
+
     @Override
     public void onRecovery(Recovery msg) {
       getContext().become(createReceive());
-      if (!hasDecided()) {
-        print("recovering, not decided");
 
-        // store the decision
-        fixDecision(Decision.ABORT);
+      // whatever was waiting in the batches got lost in the crash
+      for (Outbox o: outboxes) o.clear();
+      flushScheduled = false;
+
+      // find the transactions that were still in flight
+      transactions.clear();
+      replayLog();
+      loggedMembers.clear();
+      loggedReadOnly.clear();
+      for (int txnId: new ArrayList<>(transactions.keySet())) {
+        if (!hasDecided(txnId)) {
+          if (verbose) print("txn " + txnId + " recovering, not decided");
+
+          // store the decision
+          decide(txnId, Decision.ABORT);
+        }
+        else {
+          if (verbose) print("txn " + txnId + " recovering, decided before crash");
+          Transaction t = transactions.get(txnId);
+          DecisionResponse m = new DecisionResponse(txnId, decisionOf(txnId));
+          for (int i = t.members.nextSetBit(0); i >= 0; i = t.members.nextSetBit(i + 1)) {
+            if (!t.readOnly.get(i)) post(i, m);
+          }
+          setTimeout(DECISION_TIMEOUT, txnId);
+        }
       }
-      else {
-        print("recovering, decided before crash");
+      flushBatches();
+    }
+
+    @Override
+    void onLogRecord(byte type, int txnId, byte value) {
+      super.onLogRecord(type, txnId, value);
+      if (type == WriteAheadLog.MEMBER) {
+        loggedMembers.computeIfAbsent(txnId, k -> new BitSet()).set(value & 0xff);
       }
+      else if (type == WriteAheadLog.READ_ONLY) {
+        Transaction t = transactions.get(txnId);
+        if (t != null) t.readOnly.set(value & 0xff);
+        else loggedReadOnly.computeIfAbsent(txnId, k -> new BitSet()).set(value & 0xff);
+      }
+      else if (type == WriteAheadLog.BEGIN) {
+        transactions.put(txnId, logged(txnId));
+      }
+      else if (type == WriteAheadLog.DECISION) {
 
-      multicast(new DecisionResponse(decision));
+        // presumed outcomes were forgotten, the others wait for the acknowledgements
+        if (isPresumed(decisionOf(txnId))) transactions.remove(txnId);
+        else if (!transactions.containsKey(txnId)) transactions.put(txnId, logged(txnId));
+      }
+      else if (type == WriteAheadLog.END) {
+        transactions.remove(txnId);
+      }
     }
   }
 
   /*-- Participant -----------------------------------------------------------*/
   public static class Participant extends Node {
-    ActorRef coordinator;
-    public Participant(int id) { super(id); }
+    ShardRouter router;     // the coordinator in charge of each transaction
+
+    // transactions for which we voted YES but do not know the decision yet
+    private final Set<Integer> inDoubt = new HashSet<>();
+
+    // Tree mode: participant i has the children fanout*(i+1), ..., fanout*(i+1)+fanout-1,
+    // and the coordinator has the participants 0, ..., fanout-1. Each node forwards
+    // the batches to its children and sends up a single vote for its subtree, so
+    // no node talks to more than fanout+1 others.
+    private final List<ActorRef> children = new ArrayList<>();
+    private final Map<ActorRef, Integer> childIndex = new HashMap<>();
+
+    // a transaction whose votes or acks we are collecting for our subtree
+    private static class Subtree {
+      ActorRef up;                              // where the votes and acks go
+      Vote vote;                                // combined vote so far
+      int missingVotes;                         // children that did not vote yet
+      final BitSet inPhase2 = new BitSet();     // children that did not vote READ_ONLY
+      final BitSet missingAcks = new BitSet();  // children that did not ack the decision
+      boolean decided = false;                  // decision sent down
+    }
+
+    private final Map<Integer, Subtree> subtrees = new HashMap<>();
 
-    static public Props props(int id) {
-      return Props.create(Participant.class, () -> new Participant(id));
+    // Cooperative termination: when in doubt, we ask a few random peers and
+    // the coordinator, waiting twice as long after each attempt. A peer in
+    // doubt as well remembers that we asked, and pushes the decision to us
+    // once it learns it. A decision found this way is also pushed to a few
+    // random peers, which do the same if it is news to them (gossip).
+    private final List<ActorRef> peers = new ArrayList<>();    // shuffled in place
+    private final Random rnd = new Random();
+    private final Map<Integer, Integer> attempts = new HashMap<>();
+    private final Map<Integer, Set<ActorRef>> requesters = new HashMap<>(); // asked before we knew
+
+    public Participant(int id, Protocol protocol) { super(id, protocol); }
+
+    static public Props props(int id, Protocol protocol) {
+      return Props.create(Participant.class, () -> new Participant(id, protocol));
     }
 
     @Override
     public Receive createReceive() {
       return receiveBuilder()
         .match(StartMessage.class, this::onStartMessage)
-        .match(VoteRequest.class, this::onVoteRequest)
+        .match(Batch.class, this::onBatch)
+        .match(VoteBatch.class, this::onVoteBatch)
+        .match(DecisionAck.class, this::onDecisionAck)
         .match(DecisionRequest.class, this::onDecisionRequest)
         .match(DecisionResponse.class, this::onDecisionResponse)
-        .match(Timeout.class, this::onTimeout)
+        .match(Tick.class, this::onTick)
+        .match(MetricsSnapshot.class, this::onMetricsSnapshot)
         .match(Recovery.class, this::onRecovery)
         .build();
     }
 
     public void onStartMessage(StartMessage msg) {
+
+      // without a router, the start message is sent on behalf of the coordinator
+      this.router = msg.router != null ? msg.router : ShardRouter.of(getSender());
+      this.monitor = msg.monitor;
       setGroup(msg);
+      peers.addAll(participants);
+      for (int j=0; j<msg.fanout; j++) {
+        int c = msg.fanout * (id + 1) + j;
+        if (c < msg.group.size()) {
+          childIndex.put(msg.group.get(c), children.size());
+          children.add(msg.group.get(c));
+        }
+      }
+    }
+
+    // a batch comes from the coordinator in charge of all its transactions
+    // (or from our parent in tree mode), so the acknowledgements and votes
+    // go back to the sender
+    public void onBatch(Batch msg) {
+
+      // let our subtree start working before we do
+      if (!children.isEmpty()) {
+        forward(msg);
+      }
+
+      // decisions first: they may be about transactions we are in doubt about
+      if (!msg.decisions.isEmpty()) {
+        int[] acks = new int[msg.decisions.size()];
+        int n = 0;
+        for (DecisionResponse d: msg.decisions) {
+          boolean news = !hasDecided(d.txnId);
+          fixDecision(d.txnId, d.decision);
+          if (news) spread(d.txnId, false, null);
+          inDoubt.remove(d.txnId);
+          cancelTimeout(d.txnId);
+          if (isPresumed(d.decision)) continue;
+
+          // in tree mode we ack once our subtree did
+          Subtree t = subtrees.get(d.txnId);
+          if (t != null) t.up = getSender();
+          else acks[n++] = d.txnId;
+        }
+        if (n > 0) {
+          log.sync();
+          getSender().tell(new DecisionAck(Arrays.copyOf(acks, n)), getSelf());
+        }
+      }
+      List<VoteRequest> requests = msg.voteRequests;
+      if (!msg.work.isEmpty()) {
+        requests = onWork(msg.work, requests);
+      }
+      if (!requests.isEmpty()) {
+        onVoteRequest(requests);
+      }
     }
 
-    public void onVoteRequest(VoteRequest msg) {
-      this.coordinator = getSender();
+    // there is no real work to do: we answer right away, except with early
+    // prepare, where we vote instead; returns the vote requests to serve
+    private List<VoteRequest> onWork(List<Work> work, List<VoteRequest> requests) {
+      List<VoteRequest> all = new ArrayList<>(requests);
+      int[] done = new int[work.size()];
+      int n = 0;
+      for (Work w: work) {
+        if (w.prepare != null) all.add(w.prepare);
+        else done[n++] = w.txnId;
+      }
+      if (n > 0) getSender().tell(new WorkDone(Arrays.copyOf(done, n)), getSelf());
+      return all;
+    }
+
+    // pass a batch down the tree; a decision goes to the children that need it
+    private void forward(Batch msg) {
+      List<List<DecisionResponse>> decisions = new ArrayList<>();
+      for (int c=0; c<children.size(); c++) decisions.add(new ArrayList<>());
+      for (DecisionResponse d: msg.decisions) {
+        Subtree t = subtrees.get(d.txnId);
+        BitSet to = new BitSet();
+        if (t == null || t.missingVotes > 0) {
+
+          // we do not know who voted READ_ONLY (e.g., decided before all the votes)
+          to.set(0, children.size());
+        }
+        else if (t.decided) {
+          to = t.missingAcks;   // sent again: only to those that did not ack
+        }
+        else {
+          to = t.inPhase2;
+        }
+        for (int c = to.nextSetBit(0); c >= 0; c = to.nextSetBit(c + 1)) {
+          decisions.get(c).add(d);
+        }
+        if (t != null && !t.decided) {
+          t.decided = true;
+          if (isPresumed(d.decision) || to.isEmpty()) subtrees.remove(d.txnId);
+          else t.missingAcks.or(to);
+        }
+      }
+      for (VoteRequest r: msg.voteRequests) {
+        Subtree t = new Subtree();
+        t.up = getSender();
+        t.missingVotes = children.size();
+        subtrees.put(r.txnId, t);
+      }
+      for (int c=0; c<children.size(); c++) {
+        if (!msg.voteRequests.isEmpty() || !decisions.get(c).isEmpty()) {
+          children.get(c).tell(new Batch(msg.voteRequests, decisions.get(c)), getSelf());
+        }
+      }
+    }
+
+    // the votes of a child for its subtree
+    public void onVoteBatch(VoteBatch msg) {
+      int c = childIndex.get(getSender());
+      Map<ActorRef, List<VoteResponse>> up = new HashMap<>();
+      for (VoteResponse v: msg.votes) {
+        Subtree t = subtrees.get(v.txnId);
+        if (t == null || t.decided || t.missingVotes == 0) continue;
+        t.missingVotes--;
+        t.vote = combine(t.vote, v.vote);
+        if (v.vote != Vote.READ_ONLY) t.inPhase2.set(c);
+        if (t.missingVotes == 0) {
+          up.computeIfAbsent(t.up, k -> new ArrayList<>()).add(new VoteResponse(v.txnId, t.vote));
+
+          // a read-only subtree is done
+          if (t.vote == Vote.READ_ONLY) subtrees.remove(v.txnId);
+        }
+      }
+
+      // normally everything goes to the same place, our parent
+      for (Map.Entry<ActorRef, List<VoteResponse>> e: up.entrySet()) {
+        e.getKey().tell(new VoteBatch(e.getValue()), getSelf());
+      }
+    }
+
+    // the acks of a child for its subtree
+    public void onDecisionAck(DecisionAck msg) {
+      int c = childIndex.get(getSender());
+      Map<ActorRef, List<Integer>> up = new HashMap<>();
+      for (int txnId: msg.txnIds) {
+        Subtree t = subtrees.get(txnId);
+        if (t == null || !t.decided) continue;
+        t.missingAcks.clear(c);
+        if (t.missingAcks.isEmpty()) {
+          up.computeIfAbsent(t.up, k -> new ArrayList<>()).add(txnId);
+          subtrees.remove(txnId);
+        }
+      }
+      if (up.isEmpty()) return;
+
+      // our own decisions must be durable as well
+      log.sync();
+      for (Map.Entry<ActorRef, List<Integer>> e: up.entrySet()) {
+        int[] acks = new int[e.getValue().size()];
+        for (int i=0; i<acks.length; i++) acks[i] = e.getValue().get(i);
+        e.getKey().tell(new DecisionAck(acks), getSelf());
+      }
+    }
+
+    // the vote of a subtree: NO if anyone said NO, READ_ONLY if everybody did
+    static Vote combine(Vote a, Vote b) {
+      if (a == null) return b;
+      if (a == Vote.NO || b == Vote.NO) return Vote.NO;
+      if (a == Vote.YES || b == Vote.YES) return Vote.YES;
+      return Vote.READ_ONLY;
+    }
+
+    // vote on a group of transactions, answering with a single message
+    public void onVoteRequest(List<VoteRequest> requests) {
       //if (id==2) {crash(5000); return;}    // simulate a crash
       //if (id==2) delay(4000);              // simulate a delay
-      if (predefinedVotes[this.id] == Vote.NO) {
-        fixDecision(Decision.ABORT);
+      long start = System.nanoTime();
+      List<VoteResponse> votes = new ArrayList<>(requests.size());
+      for (VoteRequest r: requests) {
+        if (r.onePhase) {
+          votes.add(commitOnePhase(r.txnId));
+          continue;
+        }
+        Vote vote = predefinedVote(this.id, participants.size() + 1, r.txnId);
+        if (hasDecided(r.txnId)) {
+
+          // a transaction started again, e.g. after a coordinator that presumed
+          // abort forgot it: we must not prepare again what we aborted already
+          vote = decisionOf(r.txnId) == Decision.COMMIT ? Vote.YES : Vote.NO;
+        }
+        else if (vote == Vote.NO) {
+          fixDecision(r.txnId, Decision.ABORT);
+        }
+        else if (vote == Vote.READ_ONLY) {
+
+          // nothing to log or to wait for: the transaction is over for us
+        }
+        else {
+          log.append(WriteAheadLog.PREPARE, r.txnId, (byte) Vote.YES.ordinal(), true);
+          inDoubt.add(r.txnId);
+        }
+        if (verbose) print("txn " + r.txnId + " sending vote " + vote);
+        VoteResponse v = new VoteResponse(r.txnId, vote);
+        if (monitor != null) monitor.tell(v, getSelf());
+        if (vote != Vote.READ_ONLY) {
+          setTimeout(DECISION_TIMEOUT, r.txnId);
+        }
+
+        // in tree mode our vote goes up with the ones of our subtree
+        Subtree t = subtrees.get(r.txnId);
+        if (t != null) t.vote = combine(t.vote, v.vote);
+        else votes.add(v);
+      }
+
+      // one force for all the prepare records of the batch
+      log.sync();
+      if (!votes.isEmpty()) getSender().tell(new VoteBatch(votes), getSelf());
+
+      // the YES voters wait for the decision from now on
+      metrics.vote.record(System.nanoTime() - start, requests.size());
+      for (VoteRequest r: requests) {
+        if (!r.onePhase && inDoubt.contains(r.txnId)) {
+          metrics.waiting(r.txnId);
+        }
       }
-      print("sending vote " + predefinedVotes[this.id]);
-      this.coordinator.tell(new VoteResponse(predefinedVotes[this.id]), getSelf());
-      setTimeout(DECISION_TIMEOUT);
     }
 
-    public void onTimeout(Timeout msg) {
-      if (!hasDecided()) {
-        print("Timeout. Asking around.");
+    // we are the only participant: we decide, and our vote tells the decision;
+    // nobody else keeps the outcome, so it is forced whatever is presumed
+    private VoteResponse commitOnePhase(int txnId) {
+      Vote vote = predefinedVote(this.id, participants.size() + 1, txnId);
+      if (!hasDecided(txnId) && vote != Vote.READ_ONLY) {
+        fixDecision(txnId, vote == Vote.NO ? Decision.ABORT : Decision.COMMIT, true);
+      }
+
+      // asking again means our answer got lost: answer the same
+      if (hasDecided(txnId)) vote = decisionOf(txnId) == Decision.COMMIT ? Vote.YES : Vote.NO;
+      if (verbose) print("txn " + txnId + " one-phase, sending vote " + vote);
+      VoteResponse v = new VoteResponse(txnId, vote);
+      if (monitor != null) monitor.tell(v, getSelf());
+      return v;
+    }
 
-        // ask other participants
-        multicast(new DecisionRequest());
+    @Override
+    public void onTimeout(int txnId) {
+      if (!hasDecided(txnId)) {
+        int attempt = attempts.merge(txnId, 1, Integer::sum);
+        metrics.blocked(txnId);
+        if (verbose) print("txn " + txnId + " timeout. Asking around (attempt " + attempt + ")");
+
+        // ask a few other participants: those that know will answer,
+        // the others will tell us when they find out
+        DecisionRequest m = new DecisionRequest(txnId);
+        for (ActorRef p: randomPeers(TERMINATION_FANOUT)) {
+          p.tell(m, getSelf());
+        }
 
         // ask also the coordinator
-        coordinator.tell(new DecisionRequest(), getSelf());
-        setTimeout(DECISION_TIMEOUT);
+        router.shardOf(txnId).tell(m, getSelf());
+        long backoff = (long) DECISION_TIMEOUT << Math.min(attempt - 1, 16);
+        setTimeout((int) Math.min(backoff, MAX_DECISION_TIMEOUT), txnId);
+      }
+    }
+
+    // k distinct peers at random
+    private List<ActorRef> randomPeers(int k) {
+      k = Math.min(k, peers.size());
+      for (int i=0; i<k; i++) {
+        Collections.swap(peers, i, i + rnd.nextInt(peers.size() - i));
+      }
+      return new ArrayList<>(peers.subList(0, k));
+    }
+
+    @Override
+    public void onDecisionRequest(DecisionRequest msg) {
+      if (hasDecided(msg.txnId)) {
+
+        // answer even if we did already: asking again means the answer got lost
+        getSender().tell(new DecisionResponse(msg.txnId, decisionOf(msg.txnId)), getSelf());
+      }
+      else if (inDoubt.contains(msg.txnId)) {
+
+        // we will learn the decision: only then we can remember the requester,
+        // as the entry goes away with the decision
+        requesters.computeIfAbsent(msg.txnId, k -> new HashSet<>()).add(getSender());
+      }
+    }
+
+    // we just learned a decision: push it to the peers that asked for it and,
+    // if it came from the termination protocol, to a few random peers as well,
+    // except the one that told us; we push a decision only once, when it is
+    // news, so there is nothing to remember about whom we told
+    private void spread(int txnId, boolean gossip, ActorRef from) {
+      attempts.remove(txnId);
+      Set<ActorRef> to = requesters.remove(txnId);
+      if (to == null && !gossip) return;
+      if (to == null) to = new HashSet<>();
+      if (gossip) to.addAll(randomPeers(GOSSIP_FANOUT));
+      to.remove(from);
+      DecisionResponse m = new DecisionResponse(txnId, decisionOf(txnId));
+      for (ActorRef p: to) {
+        p.tell(m, getSelf());
       }
     }
 
@@ -306,50 +1300,271 @@ public class TwoPhaseCommit {
     public void onRecovery(Recovery msg) {
       getContext().become(createReceive());
 
+      // rebuild the transactions we are in doubt about; what we were
+      // collecting for our subtree is lost, the coordinator will time out
+      subtrees.clear();
+      attempts.clear();
+      requesters.clear();
+      inDoubt.clear();
+      replayLog();
+
       // We don't handle explicitly the "not voted" case here
       // (in any case, it does not break the protocol)
-      if (!hasDecided()) {
-        print("Recovery. Asking the coordinator.");
-        coordinator.tell(new DecisionRequest(), getSelf());
-        setTimeout(DECISION_TIMEOUT);
+      for (int txnId: inDoubt) {
+        if (verbose) print("txn " + txnId + " recovery. Asking the coordinator.");
+        router.shardOf(txnId).tell(new DecisionRequest(txnId), getSelf());
+        setTimeout(DECISION_TIMEOUT, txnId);
       }
     }
 
     public void onDecisionResponse(DecisionResponse msg) { /* Decision Response */
 
       // store the decision
-      fixDecision(msg.decision);
+      boolean news = !hasDecided(msg.txnId);
+      fixDecision(msg.txnId, msg.decision);
+      inDoubt.remove(msg.txnId);
+      cancelTimeout(msg.txnId);
+      log.sync();
+
+      // the sender knows already, the others may not
+      if (news) spread(msg.txnId, true, getSender());
+
+      // let the coordinator forget about the transaction
+      ActorRef coordinator = router.shardOf(msg.txnId);
+      if (getSender().equals(coordinator) && !isPresumed(msg.decision)) {
+        coordinator.tell(new DecisionAck(msg.txnId), getSelf());
+      }
+    }
+
+    @Override
+    void onLogRecord(byte type, int txnId, byte value) {
+      super.onLogRecord(type, txnId, value);
+      if (type == WriteAheadLog.PREPARE) {
+        inDoubt.add(txnId);
+      }
+      else if (type == WriteAheadLog.DECISION) {
+        inDoubt.remove(txnId);
+      }
     }
   }
 
-  /*-- Main ------------------------------------------------------------------*/
-  public static void main(String[] args) {
+  /*-- Client --------------------------------------------------------------*/
+
+  // runs a number of transactions, keeping up to window of them in flight,
+  // and reports the throughput; each transaction goes to the coordinator
+  // shard in charge of it, and touches "touched" participants out of
+  // N_PARTICIPANTS (all of them if 0), with a work phase if "work" is set;
+  // a transaction not done in RETRY_TIMEOUT is started again, as a crashed
+  // coordinator drops the requests and forgets who asked
+  public static class Client extends AbstractActor {
+    private final ShardRouter router;
+    private final int nTransactions;
+    private final int window;
+    private final CountDownLatch finished;   // counted down at the end, if any
+    private final int touched;
+    private final boolean work;
+    private int started = 0;
+    private int done = 0;
+    private int committed = 0;
+    private long start;
+    private final BitSet pending = new BitSet();   // started and not done
+    private final long[] sentAt;                   // last attempt of each transaction, ns
+    private Cancellable retries = null;
+
+    public Client(ShardRouter router, int nTransactions, int window, CountDownLatch finished,
+        int touched, boolean work) {
+      this.router = router;
+      this.nTransactions = nTransactions;
+      this.window = window;
+      this.finished = finished;
+      this.touched = touched;
+      this.work = work;
+      this.sentAt = new long[nTransactions];
+    }
 
-    // Create the actor system
-    final ActorSystem system = ActorSystem.create("helloakka");
+    // all the transactions at once
+    static public Props props(ActorRef coordinator, int nTransactions) {
+      return props(ShardRouter.of(coordinator), nTransactions, nTransactions, null);
+    }
+
+    static public Props props(ShardRouter router, int nTransactions, int window,
+        CountDownLatch finished) {
+      return props(router, nTransactions, window, finished, 0, false);
+    }
+
+    static public Props props(ShardRouter router, int nTransactions, int window,
+        CountDownLatch finished, int touched, boolean work) {
+      return Props.create(Client.class,
+          () -> new Client(router, nTransactions, window, finished, touched, work));
+    }
+
+    @Override
+    public void preStart() {
+      start = System.nanoTime();
+      for (int i=0; i<window; i++) startNext();
+      retries = getContext().system().scheduler().scheduleWithFixedDelay(
+          Duration.create(RETRY_TIMEOUT, TimeUnit.MILLISECONDS),
+          Duration.create(RETRY_TIMEOUT, TimeUnit.MILLISECONDS),
+          getSelf(),
+          new Retry(), // the message to send
+          getContext().system().dispatcher(), getSelf()
+          );
+    }
+
+    @Override
+    public void postStop() {
+      if (retries != null) retries.cancel();
+    }
+
+    private void startNext() {
+      if (started == nTransactions) return;
+      pending.set(started);
+      send(started++);
+    }
+
+    private void send(int txnId) {
+
+      // consecutive participants, starting from a different one each time
+      int[] members = null;
+      if (touched > 0) {
+        members = new int[touched];
+        for (int i=0; i<touched; i++) members[i] = (txnId + i) % N_PARTICIPANTS;
+      }
+      sentAt[txnId] = System.nanoTime();
+      router.shardOf(txnId).tell(new StartTransaction(txnId, members, work), getSelf());
+    }
+
+    @Override
+    public Receive createReceive() {
+      return receiveBuilder()
+        .match(TransactionDone.class, this::onTransactionDone)
+        .match(Retry.class, this::onRetry)
+        .build();
+    }
+
+    // the coordinator answers a retry with the outcome if it knows it,
+    // and starts the transaction otherwise
+    public void onRetry(Retry msg) {
+      long now = System.nanoTime();
+      for (int txnId = pending.nextSetBit(0); txnId >= 0; txnId = pending.nextSetBit(txnId + 1)) {
+        if (now - sentAt[txnId] > TimeUnit.MILLISECONDS.toNanos(RETRY_TIMEOUT)) {
+          send(txnId);
+        }
+      }
+    }
+
+    public void onTransactionDone(TransactionDone msg) {
+
+      // an answer to a retry may come after the first one
+      if (!pending.get(msg.txnId)) return;
+      pending.clear(msg.txnId);
+      done++;
+      if (msg.decision == Decision.COMMIT) committed++;
+      startNext();
+      if (done == nTransactions) {
+        long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.format("client: %d transaction(s), %d committed, in %d ms (%.1f txn/s)\n",
+            done, committed, ms, done * 1000.0 / Math.max(ms, 1));
+        if (finished != null) finished.countDown();
+        retries.cancel();
+      }
+    }
+  }
 
-    // Create the coordinator
-    ActorRef coordinator = system.actorOf(Coordinator.props(), "coordinator");
+  /*-- Main ------------------------------------------------------------------*/
+
+  // create the coordinator shards and the participants, and tell everyone
+  // about the group (arranged in a tree, if fanout > 0); returns the router to the shards
+  static ShardRouter createGroup(ActorSystem system, Protocol protocol, int nShards, int fanout) {
+    return createGroup(system, protocol, nShards, fanout, N_PARTICIPANTS, null);
+  }
 
-    // Create participants
+  // same, with n participants that tell the monitor (if any) about their votes and decisions
+  static ShardRouter createGroup(ActorSystem system, Protocol protocol, int nShards, int fanout,
+      int n, ActorRef monitor) {
+    List<ActorRef> shards = new ArrayList<>();
+    for (int i=0; i<nShards; i++) {
+      shards.add(system.actorOf(Coordinator.props(protocol, i), "coordinator" + i));
+    }
     List<ActorRef> group = new ArrayList<>();
-    for (int i=0; i<N_PARTICIPANTS; i++) {
-      group.add(system.actorOf(Participant.props(i), "participant" + i));
+    for (int i=0; i<n; i++) {
+      group.add(system.actorOf(Participant.props(i, protocol), "participant" + i));
     }
 
-    // Send start messages to the participants to inform them of the group
-    StartMessage start = new StartMessage(group);
+    // the participants share the router
+    ShardRouter router = new ShardRouter(shards);
+    StartMessage start = new StartMessage(group, monitor, router, fanout);
     for (ActorRef peer: group) {
       peer.tell(start, null);
     }
+    for (ActorRef c: shards) {
+      c.tell(start, null);
+    }
+    return router;
+  }
 
-    // Send the start messages to the coordinator
-    coordinator.tell(start, null);
+  // load generator: run the same load with 1, 2, 4, ... coordinator shards
+  static void scale(Protocol protocol, int fanout, int touched, boolean work) {
+    for (int nShards=1; nShards<=MAX_SHARDS; nShards*=2) {
+      WriteAheadLog.clear(Paths.get(LOG_DIR));
+      final ActorSystem system = ActorSystem.create("helloakka");
+      ShardRouter router = createGroup(system, protocol, nShards, fanout);
+      CountDownLatch finished = new CountDownLatch(1);
+      System.out.println(nShards + " coordinator shard(s)");
+      system.actorOf(Client.props(router, LOAD_TRANSACTIONS, LOAD_WINDOW, finished, touched, work),
+          "client");
+      try {
+        finished.await();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      system.terminate();
+      system.getWhenTerminated().toCompletableFuture().join();
+    }
+  }
+
+  public static void main(String[] args) {
+
+    // The protocol variant can be passed as argument (e.g., PRESUMED_ABORT),
+    // run once per variant to compare their throughput; the other arguments
+    // can be "tree", to arrange the nodes in a tree, and "scale", to measure
+    // how the throughput grows with the shards, "quiet", to print nothing
+    // from the nodes, "metrics", to export their latencies to METRICS_DIR,
+    // "single", for transactions touching a single participant (one-phase
+    // commit), "work", for transactions with a work phase, and "early",
+    // for work with early prepare
+    Protocol protocol = args.length > 0 ? Protocol.valueOf(args[0]) : Protocol.PRESUMED_NOTHING;
+    List<String> options = Arrays.asList(args).subList(Math.min(1, args.length), args.length);
+    int fanout = options.contains("tree") ? TREE_FANOUT : 0;
+    int touched = options.contains("single") ? 1 : 0;
+    earlyPrepare = options.contains("early");
+    boolean work = earlyPrepare || options.contains("work");
+    verbose = !options.contains("quiet");
+    exportMetrics = options.contains("metrics");
+    System.out.println("Running " + protocol + (fanout > 0 ? ", tree with fan-out " + fanout : ""));
+    if (options.contains("scale")) {
+      scale(protocol, fanout, touched, work);
+      return;
+    }
+
+    // Start from empty logs
+    WriteAheadLog.clear(Paths.get(LOG_DIR));
+
+    // Create the actor system
+    final ActorSystem system = ActorSystem.create("helloakka");
+
+    // Create the coordinators and the participants
+    ShardRouter router = createGroup(system, protocol, N_COORDINATORS, fanout);
+
+    // Start the transactions, the coordinators run them concurrently
+    system.actorOf(Client.props(router, N_TRANSACTIONS, N_TRANSACTIONS, null, touched, work),
+        "client");
 
     try {
       System.out.println(">>> Press ENTER to exit <<<");
       System.in.read();
-    } 
+    }
     catch (IOException ignored) {}
     system.terminate();
   }
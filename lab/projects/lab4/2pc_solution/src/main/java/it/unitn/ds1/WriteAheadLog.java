@@ -0,0 +1,155 @@
+package it.unitn.ds1;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// An append-only log made of memory-mapped segment files.
+// Records have a fixed size: a type, a one-byte value (e.g., the ordinal of
+// a vote or decision) and a transaction ID. Appending only writes to the
+// mapped memory, sync() forces everything appended so far to disk, so that
+// several records can be made durable with a single force. Records that
+// do not need to be forced (lazy records) do not make sync() force: they
+// reach the disk with the next forced record, or whenever the OS writes them.
+public class WriteAheadLog {
+  final static int RECORD_SIZE = 8;                  // bytes per record
+  final static int SEGMENT_SIZE = RECORD_SIZE << 19; // 4 MiB, 512K records per segment
+
+  // record types; 0 marks the (zero-filled) free space at the end of a segment
+  public final static byte BEGIN = 1;     // coordinator: transaction started
+  public final static byte PREPARE = 2;   // participant: voted YES
+  public final static byte DECISION = 3;  // decision taken
+  public final static byte END = 4;       // coordinator: decision acknowledged by everyone
+  public final static byte PRECOMMIT = 5; // participant: acknowledged a pre-commit (3PC)
+  public final static byte MEMBER = 6;    // coordinator: a participant the transaction touches
+  public final static byte READ_ONLY = 7; // coordinator: a participant voted READ_ONLY
+
+  // called for each record during a replay
+  public interface Reader {
+    void record(byte type, int txnId, byte value);
+  }
+
+  private final Path dir;
+  private final String name;
+  private final List<Path> segments = new ArrayList<>();
+  private MappedByteBuffer current;   // segment we are appending to
+  private boolean dirty = false;      // forced records appended since the last sync
+  private int forces = 0;             // number of forces so far
+
+  private WriteAheadLog(Path dir, String name) {
+    this.dir = dir;
+    this.name = name;
+  }
+
+  // open the log of a node, creating it if needed and appending after the last record
+  public static WriteAheadLog open(Path dir, String name) {
+    WriteAheadLog log = new WriteAheadLog(dir, name);
+    try {
+      Files.createDirectories(dir);
+      try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, name + "-*.wal")) {
+        for (Path p: ds) log.segments.add(p);
+      }
+      Collections.sort(log.segments); // names are zero-padded, so this is the append order
+      if (log.segments.isEmpty()) {
+        log.roll();
+      }
+      else {
+        log.current = map(log.segments.get(log.segments.size() - 1));
+        while (log.current.remaining() >= RECORD_SIZE
+            && log.current.get(log.current.position()) != 0) {
+          log.current.position(log.current.position() + RECORD_SIZE);
+        }
+      }
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return log;
+  }
+
+  // delete all the logs in a directory (to start from scratch)
+  public static void clear(Path dir) {
+    if (!Files.isDirectory(dir)) return;
+    try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.wal")) {
+      for (Path p: ds) Files.delete(p);
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static MappedByteBuffer map(Path p) throws IOException {
+    try (FileChannel ch = FileChannel.open(p,
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+      // the mapping stays valid after the channel is closed
+      return ch.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+    }
+  }
+
+  // start a new segment, the previous one is full
+  private void roll() throws IOException {
+    if (current != null && dirty) {
+      current.force();
+      forces++;
+      dirty = false;
+    }
+    Path p = dir.resolve(String.format("%s-%06d.wal", name, segments.size()));
+    segments.add(p);
+    current = map(p);
+  }
+
+  // append a record; if forced, it is durable after the next sync()
+  public void append(byte type, int txnId, byte value, boolean forced) {
+    if (current.remaining() < RECORD_SIZE) {
+      try { roll(); }
+      catch (IOException e) { throw new UncheckedIOException(e); }
+    }
+    int pos = current.position();
+    current.putInt(pos + 4, txnId);
+    current.put(pos + 1, value);
+
+    // the type goes last: a record with a type is complete
+    current.put(pos, type);
+    current.position(pos + RECORD_SIZE);
+    dirty |= forced;
+  }
+
+  // force all the appended records to disk, if any of them must be forced
+  public void sync() {
+    if (!dirty) return;
+    current.force();
+    forces++;
+    dirty = false;
+  }
+
+  public int forces() { return forces; }
+
+  // read the whole log in append order, returns the number of records
+  public int replay(Reader reader) {
+    int n = 0;
+    try {
+      for (Path p: segments) {
+        MappedByteBuffer b = p.equals(segments.get(segments.size() - 1)) ? current : map(p);
+        for (int pos = 0; pos + RECORD_SIZE <= SEGMENT_SIZE; pos += RECORD_SIZE) {
+          byte type = b.get(pos);
+          if (type == 0) break;
+          reader.record(type, b.getInt(pos + 4), b.get(pos + 1));
+          n++;
+        }
+      }
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return n;
+  }
+}